@@ -0,0 +1,103 @@
+package com.github.hlls.transform;
+
+import com.android.build.api.instrumentation.ClassContext;
+import com.android.build.api.instrumentation.ClassData;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javassist.ClassPath;
+
+/**
+ * 查找当前模块及其依赖中的类：先从variant的运行时classpath中查找完整的class文件，找不到的类（如当前模块自身的类）
+ * 再通过AGP的{@link ClassContext}查找。AGP只提供类名、父类、接口和类上的注解，这里据此生成只有类头的class文件
+ * （没有字段和方法），足以判断继承关系、计算栈帧时求公共父类。
+ * 每个类的处理各用一个实例，只在处理该类的线程中使用
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class ClassContextClassPath implements ClassPath {
+
+    // 运行时classpath，各个类的处理共用
+    private IndexedClassPath mRuntimeClassPath;
+    private ClassContext mClassContext;
+    // 类名 -> 生成的class文件，找不到的类为null
+    private Map<String, byte[]> mClasses = new HashMap<>();
+
+    ClassContextClassPath(IndexedClassPath runtimeClassPath, ClassContext classContext) {
+        mRuntimeClassPath = runtimeClassPath;
+        mClassContext = classContext;
+    }
+
+    @Override
+    public InputStream openClassfile(String classname) {
+        InputStream is = mRuntimeClassPath.openClassfile(classname);
+        if (is != null) {
+            return is;
+        }
+        byte[] bytes = getClassBytes(classname);
+        return ((bytes == null) ? null : new ByteArrayInputStream(bytes));
+    }
+
+    @Override
+    public URL find(String classname) {
+        URL url = mRuntimeClassPath.find(classname);
+        if (url != null) {
+            return url;
+        }
+        if (getClassBytes(classname) == null) {
+            return null;
+        }
+        try {
+            return new URL("file:/ClassContextClassPath/" + classname.replace('.', '/') + ".class");
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    private byte[] getClassBytes(String classname) {
+        if (mClasses.containsKey(classname)) {
+            return mClasses.get(classname);
+        }
+        ClassData data = mClassContext.loadClassData(classname);
+        byte[] bytes = ((data == null) ? null : createClassHeader(data));
+        mClasses.put(classname, bytes);
+        return bytes;
+    }
+
+    // 接口的父类同样为java.lang.Object，ClassData中无法区分，都按类生成
+    private static byte[] createClassHeader(ClassData data) {
+        List<String> superClasses = data.getSuperClasses();
+        String superName = (((superClasses == null) || superClasses.isEmpty())
+                ? null : toInternalName(superClasses.get(0)));
+        List<String> interfaces = data.getInterfaces();
+        String[] interfaceNames = new String[(interfaces == null) ? 0 : interfaces.size()];
+        for (int i = 0; i < interfaceNames.length; i++) {
+            interfaceNames[i] = toInternalName(interfaces.get(i));
+        }
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, toInternalName(data.getClassName()), null,
+                superName, interfaceNames);
+        List<String> annotations = data.getClassAnnotations();
+        if (annotations != null) {
+            for (String annotation : annotations) {
+                cw.visitAnnotation("L" + toInternalName(annotation) + ";", true).visitEnd();
+            }
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    private static String toInternalName(String className) {
+        return className.replace('.', '/');
+    }
+
+}
@@ -0,0 +1,111 @@
+package com.github.hlls.transform;
+
+import com.android.build.api.instrumentation.FramesComputationMode;
+import com.android.build.api.instrumentation.InstrumentationScope;
+import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.variant.AndroidComponentsExtension;
+import com.android.build.api.variant.Variant;
+import com.android.build.gradle.BaseExtension;
+
+import org.gradle.api.Action;
+import org.gradle.api.Project;
+import org.gradle.api.attributes.Attribute;
+import org.gradle.api.file.FileCollection;
+import org.objectweb.asm.ClassWriter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import kotlin.Unit;
+
+/**
+ * 把EasyTransform注册到AGP 7.x的instrumentation中，只由{@link EasyTransform#register(EasyTransform)}通过反射调用，
+ * 旧版本AGP中不会加载
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class InstrumentationRegistrar {
+
+    // 依赖中的类都以class jar的形式提供，与AGP内部的AndroidArtifacts.ArtifactType.CLASSES_JAR相同
+    private static final Attribute<String> ARTIFACT_TYPE = Attribute.of("artifactType", String.class);
+    private static final String CLASSES_JAR = "android-classes-jar";
+
+    private InstrumentationRegistrar() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static void register(EasyTransform transform) {
+        Project project = transform.mProject;
+        AndroidComponentsExtension<?, ?, Variant> components =
+                project.getExtensions().getByType(AndroidComponentsExtension.class);
+        // 合并的各transform分别注册，AGP在同一次读写中依次执行
+        List<EasyTransform> transforms = ((transform instanceof CompositeTransform)
+                ? ((CompositeTransform) transform).getTransforms() : Collections.singletonList(transform));
+        components.onVariants(components.selector().all(), (Action<Variant>) variant -> {
+            List<String> permanentPaths = getPermanentPaths(project);
+            FileCollection runtimeClasspath = getRuntimeClasspath(variant);
+            for (EasyTransform t : transforms) {
+                register(variant, t, permanentPaths, runtimeClasspath);
+            }
+        });
+    }
+
+    private static void register(Variant variant, EasyTransform transform, List<String> permanentPaths,
+                                 FileCollection runtimeClasspath) {
+        List<String> paths = new ArrayList<>(permanentPaths);
+        for (String path : transform.getPermanentPaths()) {
+            if (!paths.contains(path)) {
+                paths.add(path);
+            }
+        }
+        File classPathIndexDir = transform.getClassPathIndexDir();
+        variant.transformClassesWith(TransformClassVisitorFactory.class, getScope(transform), parameters -> {
+            parameters.getTransformClass().set(transform.getClass().getName());
+            parameters.getTransformVersion().set(transform.getTransformVersion());
+            parameters.getPermanentPaths().set(paths);
+            parameters.getRuntimeClasspath().from(runtimeClasspath);
+            if (classPathIndexDir != null) {
+                parameters.getClassPathIndexDir().set(classPathIndexDir);
+            }
+            return Unit.INSTANCE;
+        });
+        // ASM引擎重新计算栈帧时需查找整个classpath中的类，交给AGP计算
+        if ((transform.getTransformEngine() == TransformEngine.ASM)
+                && ((transform.getClassWriterFlags() & ClassWriter.COMPUTE_FRAMES) != 0)) {
+            variant.setAsmFramesComputationMode(FramesComputationMode.COMPUTE_FRAMES_FOR_INSTRUMENTED_METHODS);
+        }
+    }
+
+    // 只处理当前工程时不必处理依赖
+    private static InstrumentationScope getScope(EasyTransform transform) {
+        Set<? super QualifiedContent.Scope> scopes = transform.getScopes();
+        if ((scopes != null) && (scopes.size() == 1) && scopes.contains(QualifiedContent.Scope.PROJECT)) {
+            return InstrumentationScope.PROJECT;
+        }
+        return InstrumentationScope.ALL;
+    }
+
+    // 只在执行时解析，配置阶段不下载依赖
+    private static FileCollection getRuntimeClasspath(Variant variant) {
+        return variant.getRuntimeConfiguration().getIncoming()
+                .artifactView(config -> config.attributes(container -> container.attribute(ARTIFACT_TYPE, CLASSES_JAR)))
+                .getFiles();
+    }
+
+    // 与transform中相同，添加android.jar
+    private static List<String> getPermanentPaths(Project project) {
+        List<String> paths = new ArrayList<>();
+        BaseExtension extension = EasyTransform.getExtension(project);
+        if (extension != null) {
+            List<File> list = extension.getBootClasspath();
+            if (!list.isEmpty()) {
+                paths.add(list.get(0).getAbsolutePath());
+            }
+        }
+        return paths;
+    }
+
+}
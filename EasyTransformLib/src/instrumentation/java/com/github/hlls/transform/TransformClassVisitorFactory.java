@@ -0,0 +1,169 @@
+package com.github.hlls.transform;
+
+import com.android.build.api.instrumentation.AsmClassVisitorFactory;
+import com.android.build.api.instrumentation.ClassContext;
+import com.android.build.api.instrumentation.ClassData;
+import com.android.build.api.instrumentation.InstrumentationParameters;
+
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.ListProperty;
+import org.gradle.api.provider.Property;
+import org.gradle.api.tasks.Classpath;
+import org.gradle.api.tasks.Input;
+import org.gradle.api.tasks.Internal;
+import org.gradle.api.tasks.Optional;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javassist.ClassPath;
+
+/**
+ * 在AGP的instrumentation中执行EasyTransform，由{@link InstrumentationRegistrar}注册，不应直接使用。
+ * 每个类先完整读入，交给{@link EasyTransform#transformClassBytes(String, byte[])}修改后再传给AGP的下一个ClassVisitor，
+ * Javassist和ASM两种引擎、{@link EasyTransform#getClassFilter()}都与transform中的处理方式相同。
+ * 当前模块及其依赖中的类通过{@link ClassContextClassPath}查找：依赖中的类从variant的运行时classpath读取完整内容，
+ * 其余的类由AGP的ClassContext提供类头。处理失败的类保留原内容并输出警告
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public abstract class TransformClassVisitorFactory
+        implements AsmClassVisitorFactory<TransformClassVisitorFactory.Parameters> {
+
+    private static final Logger LOGGER = Logging.getLogger(TransformClassVisitorFactory.class);
+
+    // transform类名和classpath -> 实例，同一daemon中只创建一次
+    private static final Map<String, EasyTransform> sTransforms = new ConcurrentHashMap<>();
+
+    private transient EasyTransform mTransform;
+    // 运行时classpath的索引，该实例处理的所有类共用，首次使用时建立
+    private transient volatile IndexedClassPath mRuntimeClassPath;
+
+    @Override
+    public ClassVisitor createClassVisitor(ClassContext classContext, ClassVisitor nextClassVisitor) {
+        return new BufferedClassVisitor(getTransform(), classContext.getCurrentClassData().getClassName(),
+                new ClassContextClassPath(getRuntimeClassPath(), classContext), nextClassVisitor);
+    }
+
+    @Override
+    public boolean isInstrumentable(ClassData classData) {
+        return getTransform().isValidInjectEntryPath(classData.getClassName().replace('.', '/') + ".class");
+    }
+
+    private EasyTransform getTransform() {
+        EasyTransform transform = mTransform;
+        if (transform == null) {
+            Parameters parameters = getParameters().get();
+            String className = parameters.getTransformClass().get();
+            List<String> permanentPaths = parameters.getPermanentPaths().get();
+            File classPathIndexDir = parameters.getClassPathIndexDir().getOrNull();
+            transform = sTransforms.computeIfAbsent(className + permanentPaths, key -> {
+                EasyTransform t = TransformWorker.newInstance(className);
+                t.prepareDetached(permanentPaths, classPathIndexDir);
+                return t;
+            });
+            mTransform = transform;
+        }
+        return transform;
+    }
+
+    // 索引建立失败的jar或目录跳过，其中的类仍可通过ClassContext查找
+    private IndexedClassPath getRuntimeClassPath() {
+        IndexedClassPath classPath = mRuntimeClassPath;
+        if (classPath == null) {
+            synchronized (this) {
+                classPath = mRuntimeClassPath;
+                if (classPath == null) {
+                    classPath = new IndexedClassPath();
+                    for (File file : getParameters().get().getRuntimeClasspath().getFiles()) {
+                        try {
+                            classPath.add(file);
+                        } catch (IOException e) {
+                            LOGGER.warn(file.getAbsolutePath() + " 建立索引失败", e);
+                        }
+                    }
+                    mRuntimeClassPath = classPath;
+                }
+            }
+        }
+        return classPath;
+    }
+
+    /**
+     * 注册时从daemon中的transform实例取得的参数
+     */
+    public interface Parameters extends InstrumentationParameters {
+
+        // 在AGP的处理线程中通过无参构造函数创建
+        @Input
+        Property<String> getTransformClass();
+
+        // 即getTransformVersion()，变化时AGP重新处理所有类
+        @Input
+        @Optional
+        Property<String> getTransformVersion();
+
+        // appendPermanentClassPath添加的路径，如android.jar，compileSdkVersion变化时AGP本身会重新处理
+        @Internal
+        ListProperty<String> getPermanentPaths();
+
+        // 为null表示不使用classpath索引
+        @Internal
+        Property<File> getClassPathIndexDir();
+
+        // variant的运行时classpath（依赖的class jar），变化时AGP重新处理所有类
+        @Classpath
+        ConfigurableFileCollection getRuntimeClasspath();
+
+    }
+
+    // 读入整个类后再修改，结果（未修改时为原内容）重新读出给下一个ClassVisitor
+    private static class BufferedClassVisitor extends ClassVisitor {
+
+        private EasyTransform mTransform;
+        private String mClassName;
+        private ClassPath mClassPath;
+        private ClassWriter mClassWriter;
+        private ClassVisitor mNext;
+
+        private BufferedClassVisitor(EasyTransform transform, String className, ClassPath classPath,
+                                     ClassVisitor next) {
+            this(transform, className, classPath, new ClassWriter(0), next);
+        }
+
+        private BufferedClassVisitor(EasyTransform transform, String className, ClassPath classPath,
+                                     ClassWriter classWriter, ClassVisitor next) {
+            super(Opcodes.ASM7, classWriter);
+            mTransform = transform;
+            mClassName = className;
+            mClassPath = classPath;
+            mClassWriter = classWriter;
+            mNext = next;
+        }
+
+        @Override
+        public void visitEnd() {
+            super.visitEnd();
+            byte[] bytes = mClassWriter.toByteArray();
+            TransformUnit unit = mTransform.createUnit(mClassPath);
+            byte[] modified = mTransform.transformClassBytes(unit, mClassName, bytes);
+            // 没有transform报告可写，失败的类只能在构建输出中提示
+            if (unit.getFailure() != null) {
+                LOGGER.warn(mTransform.getClass().getName() + " 处理 " + mClassName + " 失败，保留原内容",
+                        unit.getFailure());
+            }
+            new ClassReader((modified == null) ? bytes : modified).accept(mNext, 0);
+        }
+
+    }
+
+}
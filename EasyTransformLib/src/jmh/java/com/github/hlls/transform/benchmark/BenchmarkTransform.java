@@ -0,0 +1,93 @@
+package com.github.hlls.transform.benchmark;
+
+import com.android.build.api.transform.QualifiedContent;
+import com.github.hlls.transform.EasyTransform;
+
+import org.gradle.api.Project;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Set;
+
+import javassist.CannotCompileException;
+import javassist.CtClass;
+import javassist.CtField;
+import javassist.CtMethod;
+
+/**
+ * 基准测试用的transform：不修改任何类，或在每个方法开头插入计数代码
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public class BenchmarkTransform extends EasyTransform {
+
+    private boolean mParallel;
+    private boolean mModify;
+
+    /**
+     * @param parallel 是否并行
+     * @param modify   true：修改每个类，false：不做修改
+     */
+    public BenchmarkTransform(Project project, boolean parallel, boolean modify) {
+        super(project);
+        mParallel = parallel;
+        mModify = modify;
+    }
+
+    /**
+     * 不依赖gradle工程，只用于{@link #transformClassBytes(String, byte[])}
+     *
+     * @param modify true：修改每个类，false：不做修改
+     */
+    public BenchmarkTransform(boolean modify) {
+        mModify = modify;
+    }
+
+    @Override
+    public String getName() {
+        return "benchmark";
+    }
+
+    @Override
+    public Set<QualifiedContent.ContentType> getInputTypes() {
+        return Collections.singleton(QualifiedContent.DefaultContentType.CLASSES);
+    }
+
+    @Override
+    protected Set<? super QualifiedContent.Scope> getRawScopes() {
+        return Collections.singleton(QualifiedContent.Scope.PROJECT);
+    }
+
+    @Override
+    protected boolean isJarFileNeedModify(File jarFile) {
+        return true;
+    }
+
+    @Override
+    protected boolean justModifyNotWriteBack(CtClass ctClass) {
+        if (!mModify) {
+            return false;
+        }
+        try {
+            ctClass.addField(CtField.make("public static int sInvocations;", ctClass));
+            for (CtMethod method : ctClass.getDeclaredMethods()) {
+                method.insertBefore("sInvocations++;");
+            }
+            return true;
+        } catch (CannotCompileException e) {
+            return false;
+        }
+    }
+
+    @Override
+    protected boolean isParallel() {
+        return mParallel;
+    }
+
+    // 避免报告的写入影响测量结果
+    @Override
+    protected boolean isReportEnabled() {
+        return false;
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.github.hlls.transform.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 只在内存中修改类的基准测试，不涉及文件读写和gradle工程，测量的是解析、修改和写出字节码本身的开销。
+ * 结果为每秒处理的类数
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ClassBytesBenchmark {
+
+    private static final int CLASS_COUNT = 1000;
+
+    @Param({"false", "true"})
+    public boolean modify;
+
+    private BenchmarkTransform mTransform;
+    private String[] mClassNames = new String[CLASS_COUNT];
+    private byte[][] mClasses = new byte[CLASS_COUNT][];
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mTransform = new BenchmarkTransform(modify);
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            String internalName = "bench/memory/C" + i;
+            mClassNames[i] = internalName.replace('/', '.');
+            mClasses[i] = SyntheticInputs.createClass(internalName, 0);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CLASS_COUNT)
+    public void transformClassBytes(Blackhole blackhole) {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            blackhole.consume(mTransform.transformClassBytes(mClassNames[i], mClasses[i]));
+        }
+    }
+
+}
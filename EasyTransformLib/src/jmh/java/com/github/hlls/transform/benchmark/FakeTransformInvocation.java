@@ -0,0 +1,170 @@
+package com.github.hlls.transform.benchmark;
+
+import com.android.build.api.transform.Context;
+import com.android.build.api.transform.DirectoryInput;
+import com.android.build.api.transform.Format;
+import com.android.build.api.transform.JarInput;
+import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.Status;
+import com.android.build.api.transform.TransformInput;
+import com.android.build.api.transform.TransformInvocation;
+import com.android.build.api.transform.TransformOutputProvider;
+import com.android.utils.FileUtils;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 不依赖android插件的TransformInvocation，输入为本地的jar和目录，输出写到指定目录。
+ * AGP的接口在各版本间会增加方法，这里用动态代理实现，未用到的方法返回null
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public class FakeTransformInvocation {
+
+    private static final Set<QualifiedContent.ContentType> CONTENT_TYPES =
+            Collections.singleton(QualifiedContent.DefaultContentType.CLASSES);
+    private static final Set<QualifiedContent.Scope> SCOPES =
+            Collections.singleton(QualifiedContent.Scope.PROJECT);
+
+    private File mOutputDir;
+    private File mTemporaryDir;
+    private boolean mIncremental;
+    private List<JarInput> mJarInputs = new ArrayList<>();
+    private List<DirectoryInput> mDirectoryInputs = new ArrayList<>();
+
+    /**
+     * @param outputDir 输出目录，jar输出到其中的jars目录，目录输出到dirs目录
+     */
+    public FakeTransformInvocation(File outputDir) {
+        mOutputDir = outputDir;
+        mTemporaryDir = new File(outputDir, "tmp");
+    }
+
+    public FakeTransformInvocation setIncremental(boolean incremental) {
+        mIncremental = incremental;
+        return this;
+    }
+
+    public FakeTransformInvocation addJar(File jarFile, Status status) {
+        mJarInputs.add(proxy(JarInput.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getStatus":
+                    return status;
+                default:
+                    return content(jarFile, m.getName());
+            }
+        }));
+        return this;
+    }
+
+    /**
+     * @param changedFiles 增量时变化的文件，全量时可为null
+     */
+    public FakeTransformInvocation addDirectory(File dir, Map<File, Status> changedFiles) {
+        mDirectoryInputs.add(proxy(DirectoryInput.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getChangedFiles":
+                    return ((changedFiles == null) ? Collections.emptyMap() : changedFiles);
+                default:
+                    return content(dir, m.getName());
+            }
+        }));
+        return this;
+    }
+
+    public TransformInvocation build() {
+        TransformInput input = proxy(TransformInput.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getJarInputs":
+                    return mJarInputs;
+                case "getDirectoryInputs":
+                    return mDirectoryInputs;
+                default:
+                    return null;
+            }
+        });
+        TransformOutputProvider outputProvider = proxy(TransformOutputProvider.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "deleteAll":
+                    FileUtils.deleteRecursivelyIfExists(new File(mOutputDir, "jars"));
+                    FileUtils.deleteRecursivelyIfExists(new File(mOutputDir, "dirs"));
+                    return null;
+                case "getContentLocation":
+                    // 与AGP一样，按名称区分各个输入的输出位置
+                    String name = Integer.toHexString(a[0].hashCode());
+                    return ((a[3] == Format.JAR)
+                            ? new File(mOutputDir, "jars/" + name + ".jar") : new File(mOutputDir, "dirs/" + name));
+                default:
+                    return null;
+            }
+        });
+        Context context = proxy(Context.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getVariantName":
+                    return "benchmark";
+                case "getPath":
+                    return ":benchmark:transform";
+                case "getTemporaryDir":
+                    return mTemporaryDir;
+                default:
+                    return null;
+            }
+        });
+        return proxy(TransformInvocation.class, (p, m, a) -> {
+            switch (m.getName()) {
+                case "getContext":
+                    return context;
+                case "getInputs":
+                    return Collections.singletonList(input);
+                case "getReferencedInputs":
+                case "getSecondaryInputs":
+                    return Collections.emptyList();
+                case "getOutputProvider":
+                    return outputProvider;
+                case "isIncremental":
+                    return mIncremental;
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static Object content(File file, String method) {
+        switch (method) {
+            case "getName":
+                return file.getAbsolutePath();
+            case "getFile":
+                return file;
+            case "getContentTypes":
+                return CONTENT_TYPES;
+            case "getScopes":
+                return SCOPES;
+            default:
+                return null;
+        }
+    }
+
+    private static <T> T proxy(Class<T> clazz, InvocationHandler handler) {
+        return clazz.cast(Proxy.newProxyInstance(FakeTransformInvocation.class.getClassLoader(),
+                new Class<?>[]{clazz}, (p, m, a) -> {
+                    switch (m.getName()) {
+                        case "hashCode":
+                            return System.identityHashCode(p);
+                        case "equals":
+                            return (p == a[0]);
+                        case "toString":
+                            return clazz.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(p));
+                        default:
+                            return handler.invoke(p, m, a);
+                    }
+                }));
+    }
+
+}
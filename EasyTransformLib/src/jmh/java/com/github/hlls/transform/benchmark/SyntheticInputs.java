@@ -0,0 +1,129 @@
+package com.github.hlls.transform.benchmark;
+
+import com.android.utils.FileUtils;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * 生成基准测试用的jar和class目录，其中的类结构相同、内容按序号区分，同样的参数总是生成同样的内容
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public class SyntheticInputs {
+
+    // 每个类的方法数
+    private static final int METHODS_PER_CLASS = 8;
+
+    private List<File> mJars = new ArrayList<>();
+    private File mClassesDir;
+    private List<File> mClassFiles = new ArrayList<>();
+
+    /**
+     * @param dir           生成到该目录，已存在时会先清空
+     * @param jarCount      jar的数量
+     * @param classesPerJar 每个jar（以及class目录）中类的数量
+     */
+    public SyntheticInputs(File dir, int jarCount, int classesPerJar) throws IOException {
+        FileUtils.deleteRecursivelyIfExists(dir);
+        FileUtils.mkdirs(dir);
+        for (int j = 0; j < jarCount; j++) {
+            File jar = new File(dir, "lib" + j + ".jar");
+            writeJar(jar, "bench/lib" + j, classesPerJar, 0);
+            mJars.add(jar);
+        }
+        mClassesDir = new File(dir, "classes");
+        for (int i = 0; i < classesPerJar; i++) {
+            File classFile = new File(mClassesDir, "bench/app/C" + i + ".class");
+            FileUtils.mkdirs(classFile.getParentFile());
+            Files.write(classFile.toPath(), createClass("bench/app/C" + i, 0));
+            mClassFiles.add(classFile);
+        }
+    }
+
+    public List<File> getJars() {
+        return mJars;
+    }
+
+    public File getClassesDir() {
+        return mClassesDir;
+    }
+
+    public List<File> getClassFiles() {
+        return mClassFiles;
+    }
+
+    /**
+     * 以新的内容重写jar，模拟增量构建中变化的jar
+     */
+    public void touchJar(File jar, int revision) throws IOException {
+        String name = jar.getName();
+        String pkg = "bench/" + name.substring(0, name.length() - ".jar".length());
+        int count;
+        try (ZipFile zf = new ZipFile(jar)) {
+            count = zf.size();
+        }
+        writeJar(jar, pkg, count, revision);
+    }
+
+    /**
+     * 以新的内容重写class，模拟增量构建中变化的class
+     */
+    public void touchClass(File classFile, int revision) throws IOException {
+        String path = mClassesDir.toPath().relativize(classFile.toPath()).toString().replace(File.separatorChar, '/');
+        Files.write(classFile.toPath(), createClass(path.substring(0, path.length() - ".class".length()), revision));
+    }
+
+    private static void writeJar(File jar, String pkg, int classCount, int revision) throws IOException {
+        try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar))) {
+            for (int i = 0; i < classCount; i++) {
+                String name = pkg + "/C" + i;
+                zos.putNextEntry(new ZipEntry(name + ".class"));
+                zos.write(createClass(name, revision));
+                zos.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * 生成一个带若干实例方法的类，revision不同时常量不同
+     *
+     * @param internalName 如bench/app/C0
+     */
+    public static byte[] createClass(String internalName, int revision) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, internalName, null, "java/lang/Object", null);
+        MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+        for (int m = 0; m < METHODS_PER_CLASS; m++) {
+            MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC, "m" + m, "(I)I", null, null);
+            mv.visitCode();
+            mv.visitVarInsn(Opcodes.ILOAD, 1);
+            mv.visitLdcInsn(m * 31 + revision);
+            mv.visitInsn(Opcodes.IADD);
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Math", "abs", "(I)I", false);
+            mv.visitInsn(Opcodes.IRETURN);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+}
@@ -0,0 +1,192 @@
+package com.github.hlls.transform.benchmark;
+
+import com.android.build.api.transform.Status;
+import com.android.build.api.transform.TransformInvocation;
+import com.android.utils.FileUtils;
+
+import org.gradle.api.Project;
+import org.gradle.testfixtures.ProjectBuilder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EasyTransform整体吞吐量的基准测试：全量与增量、并行与串行、不修改与修改每个类。
+ * 除每秒transform次数外，还输出每秒处理的类数（classes）和堆内存峰值（peakHeapMb），
+ * 配合gc profiler（build.gradle中已配置）可得到内存分配速率。
+ * <p>
+ * 运行：./gradlew :EasyTransformLib:jmh，结果位于 EasyTransformLib/build/reports/jmh
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TransformBenchmark {
+
+    @Param({"20"})
+    public int jarCount;
+
+    @Param({"500"})
+    public int classesPerJar;
+
+    // 增量构建时变化的jar和class所占的百分比
+    @Param({"10"})
+    public int changedPercent;
+
+    @Param({"false", "true"})
+    public boolean incremental;
+
+    @Param({"true", "false"})
+    public boolean parallel;
+
+    @Param({"false", "true"})
+    public boolean modify;
+
+    private File mWorkDir;
+    private SyntheticInputs mInputs;
+    private BenchmarkTransform mTransform;
+    private Set<File> mChangedJars = new HashSet<>();
+    private Map<File, Status> mChangedClasses = new HashMap<>();
+    private int mClassesPerOp;
+    private int mRevision;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mWorkDir = Files.createTempDirectory("easy-transform-jmh").toFile();
+        mInputs = new SyntheticInputs(new File(mWorkDir, "inputs"), jarCount, classesPerJar);
+        File projectDir = new File(mWorkDir, "project");
+        Project project = ProjectBuilder.builder().withProjectDir(projectDir).build();
+        mTransform = new BenchmarkTransform(project, parallel, modify);
+
+        List<File> jars = mInputs.getJars();
+        List<File> classFiles = mInputs.getClassFiles();
+        int changedJarCount = Math.max(1, jars.size() * changedPercent / 100);
+        int changedClassCount = Math.max(1, classFiles.size() * changedPercent / 100);
+        mChangedJars.addAll(jars.subList(0, changedJarCount));
+        for (File classFile : classFiles.subList(0, changedClassCount)) {
+            mChangedClasses.put(classFile, Status.CHANGED);
+        }
+        if (incremental) {
+            mClassesPerOp = changedJarCount * classesPerJar + changedClassCount;
+            // 增量构建以一次全量构建的输出为基础
+            runTransform(false);
+        } else {
+            mClassesPerOp = (jars.size() + 1) * classesPerJar;
+        }
+    }
+
+    // 增量时每次都以新的内容重写变化的输入，与实际构建一致
+    @Setup(Level.Invocation)
+    public void touchInputs() throws IOException {
+        if (!incremental) {
+            return;
+        }
+        mRevision++;
+        for (File jar : mChangedJars) {
+            mInputs.touchJar(jar, mRevision);
+        }
+        for (File classFile : mChangedClasses.keySet()) {
+            mInputs.touchClass(classFile, mRevision);
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        FileUtils.deleteRecursivelyIfExists(mWorkDir);
+    }
+
+    @Benchmark
+    public void transform(Classes classes, Memory memory) throws IOException {
+        runTransform(incremental);
+        classes.classes += mClassesPerOp;
+        memory.peakHeapMb = Math.max(memory.peakHeapMb, getPeakHeapMb());
+    }
+
+    private void runTransform(boolean isIncremental) throws IOException {
+        FakeTransformInvocation invocation = new FakeTransformInvocation(new File(mWorkDir, "outputs"))
+                .setIncremental(isIncremental);
+        for (File jar : mInputs.getJars()) {
+            invocation.addJar(jar, mChangedJars.contains(jar) ? Status.CHANGED : Status.NOTCHANGED);
+        }
+        invocation.addDirectory(mInputs.getClassesDir(), isIncremental ? mChangedClasses : null);
+        TransformInvocation ti = invocation.build();
+        mTransform.transform(ti);
+    }
+
+    // 各堆内存池峰值之和，略大于实际的堆峰值
+    private static long getPeakHeapMb() {
+        long bytes = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                bytes += pool.getPeakUsage().getUsed();
+            }
+        }
+        return bytes / (1024 * 1024);
+    }
+
+    /**
+     * 处理的类数，按每秒输出
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Classes {
+
+        public long classes;
+
+        // 各轮迭代分别计数，不依赖JMH是否重置
+        @Setup(Level.Iteration)
+        public void reset() {
+            classes = 0;
+        }
+
+    }
+
+    /**
+     * 本轮迭代中的堆内存峰值（MB）
+     */
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Memory {
+
+        public long peakHeapMb;
+
+        // 否则取的是之前所有迭代中的最大值，与resetPeakHeap()重置的内存池峰值不一致
+        @Setup(Level.Iteration)
+        public void reset() {
+            peakHeapMb = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.github.hlls.transform;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javassist.ClassPath;
+import javassist.NotFoundException;
+
+/**
+ * 计算栈帧（{@link ClassWriter#COMPUTE_FRAMES}）时需要求两个类的公共父类。ASM默认通过ClassLoader加载类，
+ * 而transform的输入并不在gradle的ClassLoader中，这里改为从classpath索引中读取class文件头获取父类
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class AsmClassWriter extends ClassWriter {
+
+    private static final String OBJECT = "java/lang/Object";
+
+    private ClassPath[] mClassPaths;
+
+    /**
+     * @param classPaths 依次查找类的classpath，为null的跳过
+     */
+    AsmClassWriter(ClassReader classReader, int flags, ClassPath... classPaths) {
+        super(classReader, flags);
+        mClassPaths = classPaths;
+    }
+
+    // 找不到某个类时抛出异常（与ASM默认的实现相同），该类按处理失败记录，而不是以Object代替、写出错误的栈帧
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        List<String> supers1 = getSuperClasses(type1);
+        List<String> supers2 = getSuperClasses(type2);
+        if ((supers1 == null) || (supers2 == null)) {
+            return OBJECT;
+        }
+        if (supers1.contains(type2)) {
+            return type2;
+        }
+        if (supers2.contains(type1)) {
+            return type1;
+        }
+        for (String s : supers1) {
+            if (supers2.contains(s)) {
+                return s;
+            }
+        }
+        return OBJECT;
+    }
+
+    // 返回type及其所有父类（不含接口），type是接口时返回null
+    private List<String> getSuperClasses(String type) {
+        List<String> supers = new ArrayList<>();
+        String name = type;
+        while (name != null) {
+            ClassReader cr = read(name);
+            if (cr == null) {
+                throw new TypeNotPresentException(name.replace('/', '.'), null);
+            }
+            if ((cr.getAccess() & Opcodes.ACC_INTERFACE) != 0) {
+                return null;
+            }
+            supers.add(name);
+            name = cr.getSuperName();
+        }
+        return supers;
+    }
+
+    private ClassReader read(String internalName) {
+        String className = internalName.replace('/', '.');
+        ClassDependencies.read(className);
+        for (ClassPath cp : mClassPaths) {
+            if (cp == null) {
+                continue;
+            }
+            try (InputStream is = cp.openClassfile(className)) {
+                if (is != null) {
+                    return new ClassReader(is);
+                }
+            } catch (NotFoundException | IOException e) {
+
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.github.hlls.transform;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+
+/**
+ * 可限制缓存CtClass数量的ClassPool，超出上限时按最近使用顺序移除未被修改的CtClass，被移除的类下次使用时会重新从classpath加载
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class BoundedClassPool extends ClassPool {
+
+    private int mMaxCached;
+    private LinkedHashMap<String, CtClass> mLru = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param parent    父ClassPool，可为null
+     * @param maxCached 最多缓存的CtClass数量，小于等于0表示不限制
+     */
+    BoundedClassPool(ClassPool parent, int maxCached) {
+        super(parent);
+        mMaxCached = maxCached;
+    }
+
+    // 所有按类名查找（get、getOrNull、getSuperclass等）都经过这里，记录正在修改的类读取了哪些类
+    @Override
+    protected synchronized CtClass get0(String classname, boolean useCache) throws NotFoundException {
+        ClassDependencies.read(classname);
+        return super.get0(classname, useCache);
+    }
+
+    @Override
+    protected CtClass getCached(String classname) {
+        CtClass c = super.getCached(classname);
+        if ((c != null) && (mMaxCached > 0)) {
+            synchronized (mLru) {
+                mLru.get(classname);
+            }
+        }
+        return c;
+    }
+
+    @Override
+    protected void cacheCtClass(String classname, CtClass c, boolean dynamic) {
+        super.cacheCtClass(classname, c, dynamic);
+        if (mMaxCached <= 0) {
+            return;
+        }
+        synchronized (mLru) {
+            mLru.put(classname, c);
+            Iterator<Map.Entry<String, CtClass>> it = mLru.entrySet().iterator();
+            while ((mLru.size() > mMaxCached) && it.hasNext()) {
+                Map.Entry<String, CtClass> eldest = it.next();
+                // 被修改过的类移除后修改会丢失，只能保留
+                if (!eldest.getValue().isModified()) {
+                    it.remove();
+                    super.removeCached(eldest.getKey());
+                }
+            }
+        }
+    }
+
+    @Override
+    protected CtClass removeCached(String classname) {
+        if (mMaxCached > 0) {
+            synchronized (mLru) {
+                mLru.remove(classname);
+            }
+        }
+        return super.removeCached(classname);
+    }
+
+}
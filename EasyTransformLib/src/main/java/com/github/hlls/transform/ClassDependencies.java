@@ -0,0 +1,173 @@
+package com.github.hlls.transform;
+
+import com.android.utils.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 记录每个类在被修改时读取了哪些其他类（通过ClassPool加载、查询{@link ClassIndex}、ASM计算栈帧）。
+ * 增量构建中其中任一类变化时，即使该类本身没有变化也要重新处理
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class ClassDependencies {
+
+    // 查询某个类型的所有子类型、有某个注解的所有类时，依赖的不是具体的类，以这些前缀加类名记录
+    static final String KEY_SUBTYPES = "?subtypes:";
+    static final String KEY_ANNOTATED = "?annotated:";
+
+    // 保存格式的版本，格式变化时旧文件作废
+    private static final String FORMAT_VERSION = "1";
+
+    // 当前线程正在处理的类读取过的类
+    private static final ThreadLocal<Set<String>> sReads = new ThreadLocal<>();
+
+    // 类名 -> 修改该类时读取过的类
+    private Map<String, Set<String>> mDependencies = new ConcurrentHashMap<>();
+
+    /**
+     * 开始记录当前线程读取的类
+     */
+    static void begin() {
+        sReads.set(new HashSet<>());
+    }
+
+    /**
+     * @return 从{@link #begin()}到现在当前线程读取过的类
+     */
+    static Set<String> end() {
+        Set<String> reads = sReads.get();
+        sReads.remove();
+        return reads;
+    }
+
+    /**
+     * 当前线程正在记录时，记下读取了该类
+     *
+     * @param key 类名，或{@link #KEY_SUBTYPES}、{@link #KEY_ANNOTATED}开头的查询
+     */
+    static void read(String key) {
+        Set<String> reads = sReads.get();
+        if (reads != null) {
+            reads.add(key);
+        }
+    }
+
+    /**
+     * 记录修改className时读取过的类，只保留输入中的类（其他类如android.jar中的类在增量构建中不会变化）
+     */
+    void put(String className, Collection<String> keys, ClassIndex index) {
+        Set<String> set = new HashSet<>();
+        for (String key : keys) {
+            if (!key.equals(className) && (key.startsWith("?") || index.contains(key))) {
+                set.add(key);
+            }
+        }
+        if (set.isEmpty()) {
+            mDependencies.remove(className);
+        } else {
+            mDependencies.put(className, set);
+        }
+    }
+
+    void remove(String className) {
+        mDependencies.remove(className);
+    }
+
+    /**
+     * @return 所有记录过的{@link #KEY_SUBTYPES}、{@link #KEY_ANNOTATED}开头的查询
+     */
+    Set<String> getQueryKeys() {
+        Set<String> set = new HashSet<>();
+        for (Set<String> keys : mDependencies.values()) {
+            for (String key : keys) {
+                if (key.startsWith("?")) {
+                    set.add(key);
+                }
+            }
+        }
+        return set;
+    }
+
+    /**
+     * @param changedKeys 变化的类和查询
+     * @return 修改时读取过其中任一项的类
+     */
+    Set<String> getDependents(Set<String> changedKeys) {
+        Set<String> set = new HashSet<>();
+        mDependencies.forEach((className, keys) -> {
+            for (String key : keys) {
+                if (changedKeys.contains(key)) {
+                    set.add(className);
+                    break;
+                }
+            }
+        });
+        return set;
+    }
+
+    /**
+     * @return 文件不存在或格式不符时返回null
+     */
+    static ClassDependencies load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        ClassDependencies dependencies = new ClassDependencies();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!FORMAT_VERSION.equals(reader.readLine())) {
+                return null;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // 格式：类名 依赖1 依赖2 ...
+                String[] items = line.split(" ");
+                Set<String> keys = new HashSet<>();
+                for (int i = 1; i < items.length; i++) {
+                    keys.add(items[i]);
+                }
+                if (!keys.isEmpty()) {
+                    dependencies.mDependencies.put(items[0], keys);
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return dependencies;
+    }
+
+    void save(File file) {
+        try {
+            FileUtils.mkdirs(file.getParentFile());
+            try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                writer.write(FORMAT_VERSION);
+                writer.newLine();
+                for (Map.Entry<String, Set<String>> entry : mDependencies.entrySet()) {
+                    writer.write(entry.getKey());
+                    for (String key : entry.getValue()) {
+                        writer.write(' ');
+                        writer.write(key);
+                    }
+                    writer.newLine();
+                }
+            }
+        } catch (IOException e) {
+            try {
+                FileUtils.deleteIfExists(file);
+            } catch (IOException e1) {
+
+            }
+        }
+    }
+
+}
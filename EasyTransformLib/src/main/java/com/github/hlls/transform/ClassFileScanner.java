@@ -0,0 +1,335 @@
+package com.github.hlls.transform;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * 只读取class文件头和常量池，判断class是否命中{@link ClassFilter}，不创建CtClass
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class ClassFileScanner {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_FLOAT = 4;
+    private static final int CONSTANT_LONG = 5;
+    private static final int CONSTANT_DOUBLE = 6;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_INTERFACE_METHODREF = 11;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+    private static final int CONSTANT_METHOD_HANDLE = 15;
+    private static final int CONSTANT_METHOD_TYPE = 16;
+    private static final int CONSTANT_DYNAMIC = 17;
+    private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+    private static final int CONSTANT_MODULE = 19;
+    private static final int CONSTANT_PACKAGE = 20;
+
+    private byte[] mBytes;
+    // 各常量在mBytes中的起始位置（指向tag之后）
+    private int[] mOffsets;
+    private byte[] mTags;
+    private int mHeaderEnd;
+
+    private ClassFileScanner(byte[] bytes) {
+        mBytes = bytes;
+    }
+
+    /**
+     * @return true：命中过滤条件，或无法解析（交由Javassist处理）
+     */
+    static boolean matches(byte[] classBytes, ClassFilter filter) {
+        if ((filter == null) || filter.isEmpty()) {
+            return true;
+        }
+        ClassFileScanner scanner = new ClassFileScanner(classBytes);
+        try {
+            if (!scanner.parseConstantPool()) {
+                return true;
+            }
+            return scanner.matches(filter);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return true;
+        }
+    }
+
+    /**
+     * 读取类名、访问标志、父类、接口和类上的注解，用于建立{@link ClassIndex}
+     *
+     * @return 无法解析时返回null
+     */
+    static ClassIndex.ClassInfo readClassInfo(byte[] classBytes) {
+        ClassFileScanner scanner = new ClassFileScanner(classBytes);
+        try {
+            if (!scanner.parseConstantPool()) {
+                return null;
+            }
+            return scanner.readClassInfo();
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return 类名，如com.lfa.mapleleafdemo.AnotherActivity，无法解析时返回null
+     */
+    static String readClassName(byte[] classBytes) {
+        ClassFileScanner scanner = new ClassFileScanner(classBytes);
+        try {
+            if (!scanner.parseConstantPool()) {
+                return null;
+            }
+            // access_flags之后为this_class
+            return toClassName(scanner.getClassName(scanner.readUnsignedShort(scanner.mHeaderEnd + 2)));
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    private boolean parseConstantPool() {
+        if ((mBytes.length < 10) || (readInt(0) != MAGIC)) {
+            return false;
+        }
+        int count = readUnsignedShort(8);
+        mOffsets = new int[count];
+        mTags = new byte[count];
+        int pos = 10;
+        for (int i = 1; i < count; i++) {
+            int tag = mBytes[pos];
+            mTags[i] = (byte) tag;
+            mOffsets[i] = pos + 1;
+            switch (tag) {
+                case CONSTANT_UTF8:
+                    pos += 3 + readUnsignedShort(pos + 1);
+                    break;
+                case CONSTANT_CLASS:
+                case CONSTANT_STRING:
+                case CONSTANT_METHOD_TYPE:
+                case CONSTANT_MODULE:
+                case CONSTANT_PACKAGE:
+                    pos += 3;
+                    break;
+                case CONSTANT_METHOD_HANDLE:
+                    pos += 4;
+                    break;
+                case CONSTANT_INTEGER:
+                case CONSTANT_FLOAT:
+                case CONSTANT_FIELDREF:
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                case CONSTANT_NAME_AND_TYPE:
+                case CONSTANT_DYNAMIC:
+                case CONSTANT_INVOKE_DYNAMIC:
+                    pos += 5;
+                    break;
+                case CONSTANT_LONG:
+                case CONSTANT_DOUBLE:
+                    pos += 9;
+                    // long和double占两个常量池位置
+                    i++;
+                    break;
+                default:
+                    return false;
+            }
+        }
+        mHeaderEnd = pos;
+        return true;
+    }
+
+    private boolean matches(ClassFilter filter) {
+        if (!filter.mSuperclassNames.isEmpty()) {
+            // access_flags、this_class之后为super_class
+            int superIndex = readUnsignedShort(mHeaderEnd + 4);
+            if ((superIndex != 0) && filter.mSuperclassNames.contains(getClassName(superIndex))) {
+                return true;
+            }
+        }
+
+        for (int i = 1; i < mTags.length; i++) {
+            switch (mTags[i]) {
+                case CONSTANT_CLASS:
+                    if (!filter.mClassNames.isEmpty() && filter.mClassNames.contains(getClassName(i))) {
+                        return true;
+                    }
+                    break;
+                case CONSTANT_METHODREF:
+                case CONSTANT_INTERFACE_METHODREF:
+                    if (!filter.mMethodRefs.isEmpty() && matchesMethodRef(i, filter)) {
+                        return true;
+                    }
+                    break;
+                case CONSTANT_UTF8:
+                    if (matchesDescriptor(i, filter)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return false;
+    }
+
+    private ClassIndex.ClassInfo readClassInfo() {
+        int pos = mHeaderEnd;
+        int access = readUnsignedShort(pos);
+        String name = getClassName(readUnsignedShort(pos + 2));
+        int superIndex = readUnsignedShort(pos + 4);
+        String[] interfaces = new String[readUnsignedShort(pos + 6)];
+        pos += 8;
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaces[i] = toClassName(getClassName(readUnsignedShort(pos)));
+            pos += 2;
+        }
+        // 跳过字段和方法
+        for (int k = 0; k < 2; k++) {
+            int count = readUnsignedShort(pos);
+            pos += 2;
+            for (int i = 0; i < count; i++) {
+                // access_flags、name_index、descriptor_index之后为属性
+                pos = skipAttributes(pos + 6);
+            }
+        }
+        List<String> annotations = new ArrayList<>();
+        int attributeCount = readUnsignedShort(pos);
+        pos += 2;
+        for (int i = 0; i < attributeCount; i++) {
+            String attributeName = getUtf8(readUnsignedShort(pos));
+            if ("RuntimeVisibleAnnotations".equals(attributeName)
+                    || "RuntimeInvisibleAnnotations".equals(attributeName)) {
+                readAnnotationTypes(pos + 6, annotations);
+            }
+            pos += 6 + readInt(pos + 2);
+        }
+        return new ClassIndex.ClassInfo(toClassName(name), access,
+                (superIndex == 0) ? null : toClassName(getClassName(superIndex)),
+                interfaces, annotations.toArray(new String[0]));
+    }
+
+    // 返回属性表之后的位置
+    private int skipAttributes(int pos) {
+        int count = readUnsignedShort(pos);
+        pos += 2;
+        for (int i = 0; i < count; i++) {
+            pos += 6 + readInt(pos + 2);
+        }
+        return pos;
+    }
+
+    private void readAnnotationTypes(int pos, List<String> types) {
+        int count = readUnsignedShort(pos);
+        pos += 2;
+        for (int i = 0; i < count; i++) {
+            // 注解类型为描述符形式，如Lcom/lfa/annotation/Track;
+            String descriptor = getUtf8(readUnsignedShort(pos));
+            if ((descriptor.length() > 2) && (descriptor.charAt(0) == 'L')) {
+                types.add(toClassName(descriptor.substring(1, descriptor.length() - 1)));
+            }
+            pos = skipAnnotation(pos);
+        }
+    }
+
+    // 返回annotation结构之后的位置
+    private int skipAnnotation(int pos) {
+        int pairCount = readUnsignedShort(pos + 2);
+        pos += 4;
+        for (int i = 0; i < pairCount; i++) {
+            // element_name_index之后为element_value
+            pos = skipElementValue(pos + 2);
+        }
+        return pos;
+    }
+
+    private int skipElementValue(int pos) {
+        int tag = mBytes[pos];
+        pos++;
+        switch (tag) {
+            case 'e':
+                return pos + 4;
+            case '@':
+                return skipAnnotation(pos);
+            case '[':
+                int count = readUnsignedShort(pos);
+                pos += 2;
+                for (int i = 0; i < count; i++) {
+                    pos = skipElementValue(pos);
+                }
+                return pos;
+            default:
+                return pos + 2;
+        }
+    }
+
+    private boolean matchesMethodRef(int index, ClassFilter filter) {
+        int offset = mOffsets[index];
+        int nameAndType = readUnsignedShort(offset + 2);
+        String name = getUtf8(readUnsignedShort(mOffsets[nameAndType]));
+        Set<String> owners = filter.mMethodRefs.get(name);
+        if (owners == null) {
+            return false;
+        }
+        return owners.contains("") || owners.contains(getClassName(readUnsignedShort(offset)));
+    }
+
+    // 注解类型以描述符形式出现在常量池中；其他类型引用出现在方法、字段的描述符和签名中
+    private boolean matchesDescriptor(int index, ClassFilter filter) {
+        int offset = mOffsets[index];
+        int length = readUnsignedShort(offset);
+        int start = offset + 2;
+        if (!filter.mAnnotationDescriptors.isEmpty() && (length > 2) && (mBytes[start] == 'L')
+                && (mBytes[start + length - 1] == ';')
+                && filter.mAnnotationDescriptors.contains(getUtf8(index))) {
+            return true;
+        }
+        for (byte[] descriptor : filter.mClassDescriptors) {
+            if (contains(start, length, descriptor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean contains(int start, int length, byte[] target) {
+        int last = start + length - target.length;
+        outer:
+        for (int i = start; i <= last; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (mBytes[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private String getClassName(int classIndex) {
+        return getUtf8(readUnsignedShort(mOffsets[classIndex]));
+    }
+
+    private String getUtf8(int utf8Index) {
+        int offset = mOffsets[utf8Index];
+        return new String(mBytes, offset + 2, readUnsignedShort(offset), StandardCharsets.UTF_8);
+    }
+
+    private static String toClassName(String internalName) {
+        return internalName.replace('/', '.');
+    }
+
+    private int readUnsignedShort(int pos) {
+        return ((mBytes[pos] & 0xFF) << 8) | (mBytes[pos + 1] & 0xFF);
+    }
+
+    private int readInt(int pos) {
+        return ((mBytes[pos] & 0xFF) << 24) | ((mBytes[pos + 1] & 0xFF) << 16)
+                | ((mBytes[pos + 2] & 0xFF) << 8) | (mBytes[pos + 3] & 0xFF);
+    }
+
+}
@@ -0,0 +1,89 @@
+package com.github.hlls.transform;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 声明transform关心的内容，用于在Javassist解析class之前，只读取class文件头和常量池做快速过滤。
+ * 只要满足其中任意一项，class就会交给{@link EasyTransform#justModifyNotWriteBack}处理
+ *
+ * <pre>
+ * new ClassFilter()
+ *         .addClassName("android.widget.Toast")
+ *         .addMethodRef("android.util.Log", "d")
+ *         .addAnnotation("com.lfa.annotation.Track")
+ *         .addSuperclass("android.app.Activity");
+ * </pre>
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public class ClassFilter {
+
+    // 以下类名均为内部形式，如android/app/Activity
+    Set<String> mClassNames = new HashSet<>();
+    byte[][] mClassDescriptors = new byte[0][];
+    Map<String, Set<String>> mMethodRefs = new HashMap<>();
+    Set<String> mAnnotationDescriptors = new HashSet<>();
+    Set<String> mSuperclassNames = new HashSet<>();
+
+    /**
+     * 引用了该类（作为常量、方法或字段的所属类、签名中的类型等）的class
+     *
+     * @param className 类名，如android.widget.Toast
+     */
+    public ClassFilter addClassName(String className) {
+        String internalName = toInternalName(className);
+        if (mClassNames.add(internalName)) {
+            byte[][] descriptors = new byte[mClassDescriptors.length + 1][];
+            System.arraycopy(mClassDescriptors, 0, descriptors, 0, mClassDescriptors.length);
+            descriptors[mClassDescriptors.length] = ("L" + internalName + ";").getBytes(StandardCharsets.UTF_8);
+            mClassDescriptors = descriptors;
+        }
+        return this;
+    }
+
+    /**
+     * 调用了该方法的class
+     *
+     * @param className  方法所属类名，如android.util.Log，null表示任意类
+     * @param methodName 方法名，如d
+     */
+    public ClassFilter addMethodRef(String className, String methodName) {
+        String owner = ((className == null) ? "" : toInternalName(className));
+        mMethodRefs.computeIfAbsent(methodName, k -> new HashSet<>()).add(owner);
+        return this;
+    }
+
+    /**
+     * 使用了该注解的class（类、字段、方法或参数上）
+     *
+     * @param annotationClassName 注解类名，如com.lfa.annotation.Track
+     */
+    public ClassFilter addAnnotation(String annotationClassName) {
+        mAnnotationDescriptors.add("L" + toInternalName(annotationClassName) + ";");
+        return this;
+    }
+
+    /**
+     * 直接父类为该类的class
+     *
+     * @param className 父类名，如android.app.Activity
+     */
+    public ClassFilter addSuperclass(String className) {
+        mSuperclassNames.add(toInternalName(className));
+        return this;
+    }
+
+    boolean isEmpty() {
+        return mClassNames.isEmpty() && mMethodRefs.isEmpty() && mAnnotationDescriptors.isEmpty()
+                && mSuperclassNames.isEmpty();
+    }
+
+    private static String toInternalName(String className) {
+        return className.replace('.', '/');
+    }
+
+}
@@ -0,0 +1,534 @@
+package com.github.hlls.transform;
+
+import com.android.build.api.transform.Status;
+import com.android.utils.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javassist.ClassPath;
+import javassist.NotFoundException;
+
+/**
+ * 所有输入中的类的继承关系和类上的注解，只读取class文件头、常量池和属性表建立，不创建CtClass。
+ * 保存在构建目录中，增量构建时只重新读取变化的jar和class。
+ * 类名均为java形式，如com.lfa.mapleleafdemo.AnotherActivity。不在输入中的类（如android.jar中的类）不保存，
+ * 查询父类、接口时从{@link EasyTransform#appendPermanentClassPath(String)}添加的路径中读取，
+ * 因此经过框架类的继承关系（如继承ListActivity的类是android.app.Activity的子类）也能查到
+ *
+ * <pre>
+ * ClassIndex index = getClassIndex();
+ * if (index.isSubtypeOf(ctClass.getName(), "android.app.Activity")) {
+ *     ...
+ * }
+ * Set&lt;String&gt; tracked = index.getClassesAnnotatedWith("com.lfa.annotation.Track");
+ * </pre>
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public class ClassIndex {
+
+    // 保存格式的版本，格式变化时旧文件作废
+    private static final int FORMAT_VERSION = 1;
+
+    // 各输入（jar或目录的绝对路径）中的类
+    private Map<String, Map<String, ClassInfo>> mSources = new ConcurrentHashMap<>();
+    // 以下由commit生成，之后只读
+    private Map<String, ClassInfo> mClasses = Collections.emptyMap();
+    private Map<String, List<String>> mDirectSubtypes = Collections.emptyMap();
+    private Map<String, List<String>> mAnnotatedClasses = Collections.emptyMap();
+    // 不在输入中的类从这里读取，为null时只查询输入中的类
+    private ClassPath mPermanentClassPath;
+    // 从mPermanentClassPath读取过的类，找不到的类为MISSING
+    private Map<String, ClassInfo> mPermanentClasses = new ConcurrentHashMap<>();
+    // mDirectSubtypes加上输入中的类经过的mPermanentClassPath中的类，首次查询子类时生成
+    private volatile Map<String, List<String>> mAllDirectSubtypes;
+
+    ClassIndex() {
+    }
+
+    /**
+     * @param classPath appendPermanentClassPath添加的路径，其中的类不随输入变化
+     */
+    void setPermanentClassPath(ClassPath classPath) {
+        mPermanentClassPath = classPath;
+        mPermanentClasses.clear();
+        mAllDirectSubtypes = null;
+    }
+
+    /**
+     * @return 索引中类的数量
+     */
+    public int size() {
+        return mClasses.size();
+    }
+
+    /**
+     * @return true：该类在输入中
+     */
+    public boolean contains(String className) {
+        ClassDependencies.read(className);
+        return mClasses.containsKey(className);
+    }
+
+    /**
+     * @return 直接父类，找不到该类或没有父类（java.lang.Object）时返回null
+     */
+    public String getSuperclass(String className) {
+        ClassDependencies.read(className);
+        ClassInfo info = getInfo(className);
+        return ((info == null) ? null : info.mSuperName);
+    }
+
+    /**
+     * @return 直接实现的接口（接口为其继承的接口），找不到该类时为空
+     */
+    public List<String> getInterfaces(String className) {
+        ClassDependencies.read(className);
+        ClassInfo info = getInfo(className);
+        return ((info == null) ? Collections.emptyList() : Arrays.asList(info.mInterfaces));
+    }
+
+    /**
+     * @return 类上的注解（不含字段、方法上的），找不到该类时为空
+     */
+    public List<String> getAnnotations(String className) {
+        ClassDependencies.read(className);
+        ClassInfo info = getInfo(className);
+        return ((info == null) ? Collections.emptyList() : Arrays.asList(info.mAnnotations));
+    }
+
+    /**
+     * @return true：找得到该类，且为接口或注解
+     */
+    public boolean isInterface(String className) {
+        ClassDependencies.read(className);
+        ClassInfo info = getInfo(className);
+        return ((info != null) && ((info.mAccess & ClassInfo.ACC_INTERFACE) != 0));
+    }
+
+    /**
+     * 沿父类和接口向上查找，直到找不到的类为止
+     *
+     * @param className 要判断的类
+     * @param typeName  父类或接口，如android.app.Activity
+     * @return true：className与typeName相同，或直接、间接继承或实现了typeName
+     */
+    public boolean isSubtypeOf(String className, String typeName) {
+        Set<String> visited = new HashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(className);
+        String name;
+        while ((name = queue.poll()) != null) {
+            if (name.equals(typeName)) {
+                return true;
+            }
+            ClassDependencies.read(name);
+            ClassInfo info = getInfo(name);
+            if ((info == null) || !visited.add(name)) {
+                continue;
+            }
+            if (info.mSuperName != null) {
+                queue.add(info.mSuperName);
+            }
+            queue.addAll(Arrays.asList(info.mInterfaces));
+        }
+        return false;
+    }
+
+    /**
+     * @param typeName 父类或接口，如android.app.Activity，可以不在输入中
+     * @return 直接、间接继承或实现了typeName的类，不含typeName本身。包括输入中的类经过的框架类，如查询Activity时包括ListActivity
+     */
+    public Set<String> getSubtypes(String typeName) {
+        ClassDependencies.read(ClassDependencies.KEY_SUBTYPES + typeName);
+        Map<String, List<String>> directSubtypes = getAllDirectSubtypes();
+        Set<String> result = new LinkedHashSet<>();
+        Deque<String> queue = new ArrayDeque<>();
+        queue.add(typeName);
+        String name;
+        while ((name = queue.poll()) != null) {
+            for (String subtype : directSubtypes.getOrDefault(name, Collections.emptyList())) {
+                if (result.add(subtype)) {
+                    queue.add(subtype);
+                }
+            }
+        }
+        result.remove(typeName);
+        return result;
+    }
+
+    /**
+     * @param annotationClassName 注解类名，如com.lfa.annotation.Track
+     * @return 输入中类上有该注解的类（不含字段、方法上有该注解的类）
+     */
+    public Set<String> getClassesAnnotatedWith(String annotationClassName) {
+        ClassDependencies.read(ClassDependencies.KEY_ANNOTATED + annotationClassName);
+        return new LinkedHashSet<>(mAnnotatedClasses.getOrDefault(annotationClassName, Collections.emptyList()));
+    }
+
+    private ClassInfo getInfo(String className) {
+        ClassInfo info = mClasses.get(className);
+        if ((info != null) || (mPermanentClassPath == null)) {
+            return info;
+        }
+        info = mPermanentClasses.computeIfAbsent(className, this::readPermanentClass);
+        return ((info == ClassInfo.MISSING) ? null : info);
+    }
+
+    private ClassInfo readPermanentClass(String className) {
+        try (InputStream is = mPermanentClassPath.openClassfile(className)) {
+            if (is != null) {
+                ClassInfo info = ClassFileScanner.readClassInfo(readFully(is, 0));
+                if (info != null) {
+                    return info;
+                }
+            }
+        } catch (NotFoundException | IOException e) {
+
+        }
+        return ClassInfo.MISSING;
+    }
+
+    // 从输入中的类直接继承或实现的、不在输入中的类开始，把mPermanentClassPath中沿途的类也加入继承关系
+    private Map<String, List<String>> getAllDirectSubtypes() {
+        if (mPermanentClassPath == null) {
+            return mDirectSubtypes;
+        }
+        Map<String, List<String>> result = mAllDirectSubtypes;
+        if (result != null) {
+            return result;
+        }
+        result = new HashMap<>();
+        Deque<String> queue = new ArrayDeque<>();
+        for (Map.Entry<String, List<String>> entry : mDirectSubtypes.entrySet()) {
+            result.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            if (!mClasses.containsKey(entry.getKey())) {
+                queue.add(entry.getKey());
+            }
+        }
+        Set<String> visited = new HashSet<>();
+        String name;
+        while ((name = queue.poll()) != null) {
+            ClassInfo info = getInfo(name);
+            if ((info == null) || !visited.add(name)) {
+                continue;
+            }
+            if (info.mSuperName != null) {
+                result.computeIfAbsent(info.mSuperName, k -> new ArrayList<>()).add(name);
+                queue.add(info.mSuperName);
+            }
+            for (String i : info.mInterfaces) {
+                result.computeIfAbsent(i, k -> new ArrayList<>()).add(name);
+                queue.add(i);
+            }
+        }
+        mAllDirectSubtypes = result;
+        return result;
+    }
+
+    /**
+     * @return 上次保存时该输入中的类，没有时返回null
+     */
+    Map<String, ClassInfo> getSource(String path) {
+        return mSources.get(path);
+    }
+
+    /**
+     * 记录一个输入中的类，可在多个线程中同时调用
+     */
+    void putSource(String path, Map<String, ClassInfo> classes) {
+        mSources.put(path, classes);
+    }
+
+    /**
+     * 所有输入记录完毕后调用，只保留paths中的输入，同名类以在paths中靠前的为准
+     */
+    void commit(List<String> paths) {
+        Map<String, Map<String, ClassInfo>> sources = new LinkedHashMap<>();
+        Map<String, ClassInfo> classes = new HashMap<>();
+        for (String path : paths) {
+            Map<String, ClassInfo> source = mSources.get(path);
+            if (source == null) {
+                continue;
+            }
+            sources.put(path, source);
+            for (ClassInfo info : source.values()) {
+                classes.putIfAbsent(info.mName, info);
+            }
+        }
+        Map<String, List<String>> directSubtypes = new HashMap<>();
+        Map<String, List<String>> annotatedClasses = new HashMap<>();
+        for (ClassInfo info : classes.values()) {
+            if (info.mSuperName != null) {
+                directSubtypes.computeIfAbsent(info.mSuperName, k -> new ArrayList<>()).add(info.mName);
+            }
+            for (String name : info.mInterfaces) {
+                directSubtypes.computeIfAbsent(name, k -> new ArrayList<>()).add(info.mName);
+            }
+            for (String name : info.mAnnotations) {
+                annotatedClasses.computeIfAbsent(name, k -> new ArrayList<>()).add(info.mName);
+            }
+        }
+        mSources = sources;
+        mClasses = classes;
+        mDirectSubtypes = directSubtypes;
+        mAnnotatedClasses = annotatedClasses;
+    }
+
+    /**
+     * @return 文件不存在或格式不符时返回null
+     */
+    static ClassIndex load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                return null;
+            }
+            String[] strings = new String[in.readInt()];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = in.readUTF();
+            }
+            ClassIndex index = new ClassIndex();
+            List<String> paths = new ArrayList<>();
+            int sourceCount = in.readInt();
+            for (int i = 0; i < sourceCount; i++) {
+                String path = in.readUTF();
+                paths.add(path);
+                int classCount = in.readInt();
+                Map<String, ClassInfo> classes = new HashMap<>(classCount * 4 / 3 + 1);
+                for (int j = 0; j < classCount; j++) {
+                    String name = strings[in.readInt()];
+                    int access = in.readUnsignedShort();
+                    int superIndex = in.readInt();
+                    String[] interfaces = readStrings(in, strings);
+                    String[] annotations = readStrings(in, strings);
+                    classes.put(name, new ClassInfo(name, access, (superIndex < 0) ? null : strings[superIndex],
+                            interfaces, annotations));
+                }
+                index.mSources.put(path, classes);
+            }
+            index.commit(paths);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    void save(File file) {
+        // 类名、父类等大量重复，统一放在字符串表中按序号引用
+        Map<String, Integer> table = new LinkedHashMap<>();
+        for (Map<String, ClassInfo> source : mSources.values()) {
+            for (ClassInfo info : source.values()) {
+                table.putIfAbsent(info.mName, table.size());
+                if (info.mSuperName != null) {
+                    table.putIfAbsent(info.mSuperName, table.size());
+                }
+                for (String name : info.mInterfaces) {
+                    table.putIfAbsent(name, table.size());
+                }
+                for (String name : info.mAnnotations) {
+                    table.putIfAbsent(name, table.size());
+                }
+            }
+        }
+        try {
+            FileUtils.mkdirs(file.getParentFile());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(table.size());
+                for (String s : table.keySet()) {
+                    out.writeUTF(s);
+                }
+                out.writeInt(mSources.size());
+                for (Map.Entry<String, Map<String, ClassInfo>> source : mSources.entrySet()) {
+                    out.writeUTF(source.getKey());
+                    out.writeInt(source.getValue().size());
+                    for (ClassInfo info : source.getValue().values()) {
+                        out.writeInt(table.get(info.mName));
+                        out.writeShort(info.mAccess);
+                        out.writeInt((info.mSuperName == null) ? -1 : table.get(info.mSuperName));
+                        writeStrings(out, info.mInterfaces, table);
+                        writeStrings(out, info.mAnnotations, table);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            try {
+                FileUtils.deleteIfExists(file);
+            } catch (IOException e1) {
+
+            }
+        }
+    }
+
+    /**
+     * 读取jar中所有的类
+     */
+    static Map<String, ClassInfo> readJar(File jarFile) throws IOException {
+        Map<String, ClassInfo> classes = new HashMap<>();
+        try (ZipFile zf = new ZipFile(jarFile)) {
+            Enumeration<? extends ZipEntry> entries = zf.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !entry.getName().endsWith(".class")) {
+                    continue;
+                }
+                byte[] bytes;
+                try (InputStream is = zf.getInputStream(entry)) {
+                    bytes = readFully(is, entry.getSize());
+                }
+                put(classes, ClassFileScanner.readClassInfo(bytes));
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * 读取目录中所有的类
+     *
+     * @param files 遍历目录得到的所有文件，其中的class文件会被读取
+     */
+    static Map<String, ClassInfo> readDirectory(List<InputFile> files) throws IOException {
+        Map<String, ClassInfo> classes = new HashMap<>();
+        for (InputFile f : files) {
+            if (f.mRelativePath.endsWith(".class")) {
+                put(classes, ClassFileScanner.readClassInfo(Files.readAllBytes(f.mFile.toPath())));
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * 按增量构建时变化的文件更新上次保存的目录中的类
+     *
+     * @param prev         上次保存的该目录中的类，不会被修改
+     * @param dir          不包含包名的class目录
+     * @param changedFiles 变化的文件
+     */
+    static Map<String, ClassInfo> updateDirectory(Map<String, ClassInfo> prev, File dir,
+                                                  Map<File, Status> changedFiles) throws IOException {
+        Map<String, ClassInfo> classes = new HashMap<>(prev);
+        for (Map.Entry<File, Status> entry : changedFiles.entrySet()) {
+            File file = entry.getKey();
+            if (!file.getName().endsWith(".class")) {
+                continue;
+            }
+            switch (entry.getValue()) {
+                case ADDED:
+                case CHANGED:
+                    put(classes, ClassFileScanner.readClassInfo(Files.readAllBytes(file.toPath())));
+                    break;
+                case REMOVED:
+                    classes.remove(getClassName(dir, file));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return classes;
+    }
+
+    /**
+     * @param dir       不包含包名的class目录
+     * @param classFile dir中的class文件
+     * @return 类名，不是class文件时返回null
+     */
+    static String getClassName(File dir, File classFile) {
+        String name = dir.toPath().relativize(classFile.toPath()).toString();
+        if (!name.endsWith(".class")) {
+            return null;
+        }
+        return name.substring(0, name.length() - ".class".length()).replace(File.separatorChar, '.');
+    }
+
+    private static void put(Map<String, ClassInfo> classes, ClassInfo info) {
+        if (info != null) {
+            classes.put(info.mName, info);
+        }
+    }
+
+    private static byte[] readFully(InputStream is, long size) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream((size > 0) ? (int) size : 8192);
+        byte[] buffer = new byte[8192];
+        int len;
+        while ((len = is.read(buffer)) != -1) {
+            bos.write(buffer, 0, len);
+        }
+        return bos.toByteArray();
+    }
+
+    private static String[] readStrings(DataInputStream in, String[] strings) throws IOException {
+        int count = in.readUnsignedShort();
+        if (count == 0) {
+            return ClassInfo.EMPTY;
+        }
+        String[] result = new String[count];
+        for (int i = 0; i < count; i++) {
+            result[i] = strings[in.readInt()];
+        }
+        return result;
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] values, Map<String, Integer> table)
+            throws IOException {
+        out.writeShort(values.length);
+        for (String value : values) {
+            out.writeInt(table.get(value));
+        }
+    }
+
+    /**
+     * 一个类在索引中的信息
+     */
+    static class ClassInfo {
+
+        private static final int ACC_INTERFACE = 0x0200;
+        private static final String[] EMPTY = new String[0];
+        // 找不到的类
+        private static final ClassInfo MISSING = new ClassInfo("", 0, null, EMPTY, EMPTY);
+
+        private String mName;
+        private int mAccess;
+        private String mSuperName;
+        private String[] mInterfaces;
+        private String[] mAnnotations;
+
+        ClassInfo(String name, int access, String superName, String[] interfaces, String[] annotations) {
+            mName = name;
+            mAccess = access;
+            mSuperName = superName;
+            mInterfaces = ((interfaces.length == 0) ? EMPTY : interfaces);
+            mAnnotations = ((annotations.length == 0) ? EMPTY : annotations);
+        }
+
+    }
+
+}
@@ -0,0 +1,303 @@
+package com.github.hlls.transform;
+
+import com.android.build.api.transform.JarInput;
+import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.SecondaryFile;
+
+import org.gradle.api.Project;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javassist.ClassPath;
+
+/**
+ * 把多个EasyTransform合并成一个transform执行：每个jar和目录只读取、写出一次，每个类只解析一次，
+ * 依次交给对其生效的各个transform修改后再统一写出。
+ * <p>
+ * 被合并的transform不必再注册到android插件中，其{@link #isJarFileNeedModify(File)}、{@link #isValidInjectFile(File)}、
+ * {@link #isValidInjectEntry(String)}、{@link #justModifyNotWriteBack(javassist.CtClass)}等仍按原逻辑调用，
+ * 并且只对其{@link #getScopes()}范围内的输入生效。
+ * 参数、secondary输入输出和{@link #appendPermanentClassPath(String)}添加的classpath为各transform的合集，
+ * 任一transform开启依赖记录或关闭{@link #isJarSkipListEnabled()}时对所有transform生效，
+ * jar流式处理、压缩、并行等选项以CompositeTransform自身的设置为准
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public class CompositeTransform extends EasyTransform {
+
+    private String mName;
+    private List<EasyTransform> mTransforms;
+
+    /**
+     * @param project    当前工程
+     * @param name       transform名称
+     * @param transforms 要合并的transform，按此顺序修改每个类
+     */
+    public CompositeTransform(Project project, String name, List<? extends EasyTransform> transforms) {
+        super(project);
+        if ((transforms == null) || transforms.isEmpty()) {
+            throw new IllegalArgumentException(getClass().getName() + " 的构造函数参数 transforms 不能为空");
+        }
+        mName = name;
+        mTransforms = Collections.unmodifiableList(new ArrayList<>(transforms));
+    }
+
+    public List<EasyTransform> getTransforms() {
+        return mTransforms;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public Set<QualifiedContent.ContentType> getInputTypes() {
+        Set<QualifiedContent.ContentType> set = new HashSet<>();
+        for (EasyTransform t : mTransforms) {
+            if (t.getInputTypes() != null) {
+                set.addAll(t.getInputTypes());
+            }
+        }
+        return set;
+    }
+
+    @Override
+    protected Set<? super QualifiedContent.Scope> getRawScopes() {
+        Set<QualifiedContent.ScopeType> set = new HashSet<>();
+        for (EasyTransform t : mTransforms) {
+            addScopes(set, t.getScopes());
+        }
+        return set;
+    }
+
+    @Override
+    public Set<? super QualifiedContent.Scope> getReferencedScopes() {
+        Set<QualifiedContent.ScopeType> set = new HashSet<>();
+        for (EasyTransform t : mTransforms) {
+            addScopes(set, t.getReferencedScopes());
+        }
+        // 某个transform要修改的范围，即使其他transform只引用，也已包含在输入中
+        Set<QualifiedContent.ScopeType> scopes = new HashSet<>();
+        addScopes(scopes, getScopes());
+        set.removeAll(scopes);
+        return set;
+    }
+
+    @Override
+    public Map<String, Object> getParameterInputs() {
+        Map<String, Object> map = new HashMap<>();
+        for (EasyTransform t : mTransforms) {
+            Map<String, Object> inputs = t.getParameterInputs();
+            if (inputs == null) {
+                continue;
+            }
+            for (Map.Entry<String, Object> entry : inputs.entrySet()) {
+                map.put(t.getName() + "." + entry.getKey(), entry.getValue());
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public boolean isIncremental() {
+        for (EasyTransform t : mTransforms) {
+            if (!t.isIncremental()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean isJarFileNeedModify(File jarFile) {
+        for (EasyTransform t : mTransforms) {
+            if (t.isJarFileNeedModify(jarFile)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean isValidInjectFile(File file) {
+        for (EasyTransform t : mTransforms) {
+            if (t.isValidInjectFile(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    protected boolean isValidInjectEntry(String entryName) {
+        for (EasyTransform t : mTransforms) {
+            if (t.isValidInjectEntry(entryName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 所有transform都有版本号时才使用跨构建缓存，任一transform的版本或顺序变化都会使缓存失效
+    @Override
+    protected String getTransformVersion() {
+        StringBuilder sb = new StringBuilder();
+        for (EasyTransform t : mTransforms) {
+            String version = t.getTransformVersion();
+            if (version == null) {
+                return null;
+            }
+            sb.append(t.getClass().getName()).append('@').append(version)
+                    .append('@').append(t.getTransformEngine()).append(';');
+        }
+        return sb.toString();
+    }
+
+    @Override
+    protected boolean isClassIndexEnabled() {
+        for (EasyTransform t : mTransforms) {
+            if (t.isClassIndexEnabled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 任一transform的修改依赖其他类时都需要记录，各transform共用同一份记录
+    @Override
+    protected boolean isDependencyTrackingEnabled() {
+        for (EasyTransform t : mTransforms) {
+            if (t.isDependencyTrackingEnabled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // 任一transform是否修改取决于其他jar时，都不能跳过jar
+    @Override
+    protected boolean isJarSkipListEnabled() {
+        for (EasyTransform t : mTransforms) {
+            if (!t.isJarSkipListEnabled()) {
+                return false;
+            }
+        }
+        return super.isJarSkipListEnabled();
+    }
+
+    @Override
+    public Collection<SecondaryFile> getSecondaryFiles() {
+        List<SecondaryFile> list = new ArrayList<>();
+        for (EasyTransform t : mTransforms) {
+            addAll(list, t.getSecondaryFiles());
+        }
+        return list;
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public Collection<File> getSecondaryFileInputs() {
+        Set<File> set = new LinkedHashSet<>();
+        for (EasyTransform t : mTransforms) {
+            addAll(set, t.getSecondaryFileInputs());
+        }
+        return set;
+    }
+
+    @Override
+    public Collection<File> getSecondaryFileOutputs() {
+        Set<File> set = new LinkedHashSet<>();
+        for (EasyTransform t : mTransforms) {
+            addAll(set, t.getSecondaryFileOutputs());
+        }
+        return set;
+    }
+
+    @Override
+    public Collection<File> getSecondaryDirectoryOutputs() {
+        Set<File> set = new LinkedHashSet<>();
+        for (EasyTransform t : mTransforms) {
+            addAll(set, t.getSecondaryDirectoryOutputs());
+        }
+        return set;
+    }
+
+    // worker中无法重新创建被合并的各个transform
+    @Override
+    protected WorkerIsolationMode getWorkerIsolationMode() {
+        return null;
+    }
+
+    // 各transform共用同一个索引
+    @Override
+    void setClassIndex(ClassIndex classIndex) {
+        super.setClassIndex(classIndex);
+        for (EasyTransform t : mTransforms) {
+            t.setClassIndex(classIndex);
+        }
+    }
+
+    // 各transform添加的classpath（如android.jar、辅助jar）合并到CompositeTransform中，修改类时只查找CompositeTransform的classpath
+    @Override
+    synchronized void initFilters() {
+        for (EasyTransform t : mTransforms) {
+            t.initFilters();
+            appendPermanentPaths(t.getPermanentPaths());
+        }
+        super.initFilters();
+    }
+
+    // 单独修改类时所有transform都生效
+    @Override
+    TransformUnit createUnit() {
+        return new TransformUnit(createUnitClassPool(), mTransforms);
+    }
+
+    @Override
+    TransformUnit createUnit(ClassPath classPath) {
+        return new TransformUnit(createContextClassPool(classPath), mTransforms, classPath);
+    }
+
+    // 只保留对该输入生效的transform
+    @Override
+    TransformUnit createUnit(QualifiedContent content) {
+        List<EasyTransform> transforms = new ArrayList<>(mTransforms.size());
+        for (EasyTransform t : mTransforms) {
+            Set<? super QualifiedContent.Scope> scopes = t.getScopes();
+            if ((scopes == null) || Collections.disjoint(scopes, content.getScopes())) {
+                continue;
+            }
+            if ((content instanceof JarInput) && !t.isJarFileNeedModify(content.getFile())) {
+                continue;
+            }
+            transforms.add(t);
+        }
+        return new TransformUnit(createUnitClassPool(), transforms);
+    }
+
+    private static <T> void addAll(Collection<T> to, Collection<? extends T> from) {
+        if (from != null) {
+            to.addAll(from);
+        }
+    }
+
+    private static void addScopes(Set<QualifiedContent.ScopeType> set, Set<? super QualifiedContent.Scope> scopes) {
+        if (scopes == null) {
+            return;
+        }
+        for (Object scope : scopes) {
+            set.add((QualifiedContent.ScopeType) scope);
+        }
+    }
+
+}
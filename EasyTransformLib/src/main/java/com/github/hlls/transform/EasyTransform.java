@@ -1,5 +1,6 @@
 package com.github.hlls.transform;
 
+import com.android.build.api.transform.Context;
 import com.android.build.api.transform.DirectoryInput;
 import com.android.build.api.transform.Format;
 import com.android.build.api.transform.JarInput;
@@ -16,29 +17,55 @@ import com.android.ide.common.internal.WaitableExecutor;
 import com.android.utils.FileUtils;
 import com.google.common.collect.ImmutableSet;
 
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.http.util.TextUtils;
 import org.gradle.api.Project;
 import org.gradle.api.plugins.ExtensionContainer;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
 import org.zeroturnaround.zip.ZipUtil;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CountDownLatch;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
 
 import javassist.CannotCompileException;
+import javassist.ClassClassPath;
 import javassist.ClassPath;
 import javassist.ClassPool;
 import javassist.CtClass;
@@ -49,10 +76,49 @@ import javassist.NotFoundException;
  */
 public abstract class EasyTransform extends Transform {
 
-    private ClassPool mClassPool = new ClassPool(true);
+    // 通过该gradle属性指定跨构建缓存目录，如 -PeasyTransform.cacheDir=/ci/cache/easy-transform
+    public static final String PROPERTY_CACHE_DIR = "easyTransform.cacheDir";
+    // 通过该gradle属性开启trace，如 -PeasyTransform.trace=true
+    public static final String PROPERTY_TRACE = "easyTransform.trace";
+
+    // 估算处理一个输入时的内存占用：jar大小、目录中文件总大小的倍数
+    private static final int JAR_MEMORY_FACTOR = 5;
+    private static final int CLASS_MEMORY_FACTOR = 2;
+    // AGP 7.0起提供，用于判断是否支持instrumentation
+    private static final String ASM_CLASS_VISITOR_FACTORY = "com.android.build.api.instrumentation.AsmClassVisitorFactory";
+    // 依赖新版AGP接口的适配代码，单独编译（见src/instrumentation）
+    private static final String INSTRUMENTATION_REGISTRAR = "com.github.hlls.transform.InstrumentationRegistrar";
+    // ASM引擎处理当前类时是否调用过markClassModified
+    private static final ThreadLocal<boolean[]> sClassModified = ThreadLocal.withInitial(() -> new boolean[1]);
+
+    // 只包含系统类和appendPermanentClassPath添加的路径，各输入（jar或目录）的ClassPool以它为父
+    private ClassPool mClassPool;
     protected Project mProject;
     protected CurrentScope mCurrentScope;
-    private Map<String, ClassPath> mMapPermanentClassPath = new ConcurrentHashMap<>();
+    private Set<String> mPermanentPaths = ConcurrentHashMap.newKeySet();
+    // appendPermanentClassPath添加的路径的索引，挂在mClassPool上，跨transform保留
+    private IndexedClassPath mPermanentClassPath = new IndexedClassPath();
+    // 本次transform所有输入的索引，挂在各输入的ClassPool上
+    private IndexedClassPath mInputClassPath = new IndexedClassPath();
+    private TransformCache mTransformCache;
+    private JarSkipList mJarSkipList;
+    ClassFilter mClassFilter;
+    // 由getPathFilter取得
+    private PathFilter mPathFilter;
+    // 子类是否覆写了isValidInjectFile，未覆写时只按相对路径判断，不再访问文件系统
+    private boolean mInjectFileOverridden;
+    // mClassFilter、mPathFilter是否已取得
+    private volatile boolean mFiltersReady;
+    // 本次transform所有输入的类索引，未开启时为null
+    private ClassIndex mClassIndex;
+    // 各类修改时读取过的类，未开启依赖记录时为null
+    private ClassDependencies mDependencies;
+    // 本次transform的统计，在transform之外单独修改类时也记在这里
+    private TransformMetrics mMetrics = new TransformMetrics(false);
+    // 提交到gradle worker，未开启worker时为null
+    private WorkerDispatcher mWorkers;
+    // worker中没有project，使用daemon传入的classpath索引目录
+    private File mClassPathIndexDir;
 
     public EasyTransform(Project project) {
         if (project == null) {
@@ -70,6 +136,14 @@ public abstract class EasyTransform extends Transform {
         }
     }
 
+    /**
+     * 用于在gradle worker中创建实例（见{@link #getWorkerIsolationMode()}），或脱离gradle单独修改类（见{@link #transformClassBytes}）。
+     * 此时没有project，只会调用修改类相关的方法
+     */
+    protected EasyTransform() {
+        mCurrentScope = CurrentScope.UNKNOWN;
+    }
+
     /**
      * 判定所传入jar文件是否要进行transform操作
      *
@@ -78,15 +152,66 @@ public abstract class EasyTransform extends Transform {
      */
     protected abstract boolean isJarFileNeedModify(File jarFile);
 
+    protected abstract Set<? super QualifiedContent.Scope> getRawScopes();
+
     /**
-     * 按实际需要修改传入都文件对象（注意：如需修改，只做修改即可，不必回写。后续处理步骤会进行回写）
+     * 按实际需要修改传入都文件对象（注意：如需修改，只做修改即可，不必回写。后续处理步骤会进行回写）。
+     * 仅在{@link #getTransformEngine()}为{@link TransformEngine#JAVASSIST}时调用
      *
      * @param ctClass 文件对象
      * @return true：对所传入的文件对象进行了修改，false：未做修改
      */
-    protected abstract boolean justModifyNotWriteBack(CtClass ctClass);
+    protected boolean justModifyNotWriteBack(CtClass ctClass) {
+        return false;
+    }
 
-    protected abstract Set<? super QualifiedContent.Scope> getRawScopes();
+    /**
+     * 按实际需要创建修改类的ClassVisitor，处理后的结果需传递给next。
+     * 仅在{@link #getTransformEngine()}为{@link TransformEngine#ASM}时调用
+     *
+     * @param className 类名，如com.lfa.mapleleafdemo.AnotherActivity
+     * @param next      下一个ClassVisitor，最终写出修改后的字节码
+     * @return 修改类的ClassVisitor，null表示不修改该类
+     */
+    protected ClassVisitor createClassVisitor(String className, ClassVisitor next) {
+        return null;
+    }
+
+    /**
+     * {@link #createClassVisitor}返回的ClassVisitor是否在实际修改类时调用{@link #markClassModified()}。
+     * 开启后没有调用过的类按未修改处理，直接使用原字节码；否则只有写出的内容与原来完全相同时才按未修改处理，
+     * 而包装了方法的ClassVisitor即使没有改动，重新写出的字节码通常也会不同
+     *
+     * @return 默认false
+     */
+    protected boolean isClassModifiedMarked() {
+        return false;
+    }
+
+    /**
+     * 在{@link #createClassVisitor}返回的ClassVisitor中，实际修改了当前类时调用，见{@link #isClassModifiedMarked()}
+     */
+    public static void markClassModified() {
+        sClassModified.get()[0] = true;
+    }
+
+    /**
+     * 修改class所用的字节码引擎
+     *
+     * @return 默认{@link TransformEngine#JAVASSIST}
+     */
+    protected TransformEngine getTransformEngine() {
+        return TransformEngine.JAVASSIST;
+    }
+
+    /**
+     * ASM引擎写出class时的选项，如需插入局部变量或改变控制流，可加上{@link ClassWriter#COMPUTE_FRAMES}
+     *
+     * @return {@link ClassWriter}构造函数的flags，默认{@link ClassWriter#COMPUTE_MAXS}
+     */
+    protected int getClassWriterFlags() {
+        return ClassWriter.COMPUTE_MAXS;
+    }
 
     /**
      * 判断所传入文件是否要进行transform操作
@@ -96,14 +221,218 @@ public abstract class EasyTransform extends Transform {
      */
     protected boolean isValidInjectFile(File file) {
         if (file.isFile()) {
-            String absolutePath = file.getAbsolutePath();
-            return absolutePath.endsWith(".class") && !absolutePath.endsWith("R.class")
-                    && !absolutePath.endsWith("BuildConfig.class") && !absolutePath.contains("R$");
+            return isValidClassPath(file.getAbsolutePath());
         } else {
             return false;
         }
     }
 
+    /**
+     * 判断jar包中的条目是否要进行transform操作（仅在流式处理jar时使用）
+     *
+     * @param entryName jar包中的条目名，如com/lfa/mapleleafdemo/AnotherActivity.class
+     * @return true表示入参所传条目需要进行transform
+     */
+    protected boolean isValidInjectEntry(String entryName) {
+        return isValidClassPath(entryName);
+    }
+
+    /**
+     * 按路径筛选要处理的class，如只处理某些包、排除生成的代码。在{@link #isValidInjectFile(File)}、
+     * {@link #isValidInjectEntry(String)}之前判断，不读取文件内容。每次transform只调用一次
+     *
+     * @return 过滤条件，null表示不过滤（默认）
+     */
+    protected PathFilter getPathFilter() {
+        return null;
+    }
+
+    /**
+     * 流式处理jar的开关。开启后直接从输入jar读取条目并写入目标jar，不再解压到临时目录
+     *
+     * @return true：流式处理，false：解压到临时目录处理后再打包
+     */
+    protected boolean isStreamingJarTransform() {
+        return true;
+    }
+
+    /**
+     * 重新写入jar时，被修改条目的压缩方式。未修改的条目总是按原压缩数据直接拷贝，不受此影响
+     *
+     * @return {@link ZipEntry#DEFLATED}（默认）或{@link ZipEntry#STORED}（不压缩，适合debug构建）
+     */
+    protected int getJarEntryCompressMethod() {
+        return ZipEntry.DEFLATED;
+    }
+
+    /**
+     * 重新写入jar时，被修改条目的压缩级别，仅在压缩方式为{@link ZipEntry#DEFLATED}时有效
+     *
+     * @return 0-9，或{@link Deflater#DEFAULT_COMPRESSION}（默认）
+     */
+    protected int getJarDeflateLevel() {
+        return Deflater.DEFAULT_COMPRESSION;
+    }
+
+    /**
+     * transform的版本号，用于跨构建缓存jar和class的transform结果。修改了transform逻辑时必须同时修改版本号，否则会命中旧的缓存
+     *
+     * @return 版本号，null表示不使用跨构建缓存（默认）
+     */
+    protected String getTransformVersion() {
+        return null;
+    }
+
+    /**
+     * 跨构建缓存目录，默认可通过gradle属性{@link #PROPERTY_CACHE_DIR}指定，否则位于gradle用户目录下
+     *
+     * @return 缓存目录
+     */
+    protected File getTransformCacheDir() {
+        Object dir = mProject.findProperty(PROPERTY_CACHE_DIR);
+        if (dir != null) {
+            return new File(dir.toString(), getName());
+        }
+        return new File(mProject.getGradle().getGradleUserHomeDir(), "caches/easy-transform/" + getName());
+    }
+
+    /**
+     * {@link #appendPermanentClassPath(String)}添加的jar（如android.jar）的索引目录。每个jar（即每个SDK版本）只建立一次索引，
+     * 之后各transform和variant直接以内存映射的方式打开，查找类时无需再读取jar的中央目录
+     *
+     * @return 默认位于gradle用户目录下，null表示不使用索引
+     */
+    protected File getClassPathIndexDir() {
+        return new File(mProject.getGradle().getGradleUserHomeDir(), "caches/easy-transform/classpath-index");
+    }
+
+    /**
+     * 跨构建缓存的大小上限，超出后按最近使用时间淘汰
+     *
+     * @return 字节数
+     */
+    protected long getTransformCacheMaxSize() {
+        return 1024L * 1024 * 1024;
+    }
+
+    /**
+     * 是否记录上次transform时没有任何类被修改的jar，内容不变时直接拷贝，不再逐个处理其中的类。
+     * 仅在{@link #getTransformVersion()}不为null时生效。如果某个类是否修改取决于其他jar中的类，应返回false
+     *
+     * @return true：记录（默认）
+     */
+    protected boolean isJarSkipListEnabled() {
+        return true;
+    }
+
+    /**
+     * 处理目录中的class时，每批任务最多包含的文件数。小文件合并成批提交，可减少任务数量和线程池队列竞争
+     *
+     * @return 文件数
+     */
+    protected int getClassBatchSize() {
+        return 32;
+    }
+
+    /**
+     * 处理目录中的class时，每批任务最多包含的字节数，单个超出的文件单独成批
+     *
+     * @return 字节数
+     */
+    protected long getClassBatchBytes() {
+        return 256 * 1024;
+    }
+
+    /**
+     * 未修改的class和jar是否以硬链接的形式放到输出目录，否则拷贝。不支持硬链接时（如跨文件系统）自动退回到拷贝。
+     * 硬链接与javac的输出、gradle缓存中的jar是同一个文件，只有确定后续的transform和工具都不会原地改写其输入时才能开启，
+     * 否则会连带改写上游的文件
+     *
+     * @return true：允许硬链接，默认false
+     */
+    protected boolean isHardLinkAllowed() {
+        return false;
+    }
+
+    /**
+     * 每个ClassPool最多缓存的CtClass数量，超出后按最近使用顺序移除未被修改的类。
+     * 每个输入（jar或目录）使用单独的ClassPool，处理完即释放，因此通常无需设置
+     *
+     * @return 数量上限，小于等于0表示不限制（默认）
+     */
+    protected int getMaxCachedClasses() {
+        return 0;
+    }
+
+    /**
+     * 声明transform关心的类、方法、注解或父类。设置后，只读取class文件头和常量池即可跳过无关的class，
+     * 不再为其创建CtClass和调用{@link #justModifyNotWriteBack(CtClass)}或{@link #createClassVisitor}。每次transform只调用一次
+     *
+     * @return 过滤条件，null表示不过滤（默认）
+     */
+    protected ClassFilter getClassFilter() {
+        return null;
+    }
+
+    /**
+     * 是否在transform开始前为所有输入（含引用的输入）建立类的继承关系和注解索引，供{@link #getClassIndex()}查询。
+     * 索引保存在构建目录中，增量构建时只重新读取变化的jar和class。
+     * 注意：增量构建只重新处理变化的类，跨构建缓存和{@link #isJarSkipListEnabled()}也只根据输入本身的内容判断，
+     * 如果某个类是否修改取决于其他类的信息，应同时开启{@link #isDependencyTrackingEnabled()}
+     *
+     * @return true：建立索引，默认false
+     */
+    protected boolean isClassIndexEnabled() {
+        return false;
+    }
+
+    /**
+     * 所有输入中类的继承关系和注解，可在{@link #justModifyNotWriteBack(CtClass)}、{@link #createClassVisitor}中查询，
+     * 无需通过CtClass逐级加载父类
+     *
+     * @return 仅在{@link #isClassIndexEnabled()}或{@link #isDependencyTrackingEnabled()}为true时，在transform过程中不为null
+     */
+    protected ClassIndex getClassIndex() {
+        return mClassIndex;
+    }
+
+    void setClassIndex(ClassIndex classIndex) {
+        mClassIndex = classIndex;
+    }
+
+    /**
+     * 是否记录每个类在修改时读取了哪些其他类（通过ClassPool加载、查询{@link #getClassIndex()}、ASM计算栈帧）。
+     * 增量构建时其中任一类变化，即使该类本身没有变化也会重新处理，修改逻辑依赖其他类（如父类、注解）时仍可使用增量构建。
+     * 开启后同时建立类索引，不再使用跨构建缓存和{@link #isJarSkipListEnabled()}，有变化的jar整体重新处理（不从上次的输出中拷贝未变化的条目）；
+     * 没有上次的记录时按全量处理
+     *
+     * @return true：记录，默认false
+     */
+    protected boolean isDependencyTrackingEnabled() {
+        return false;
+    }
+
+    /**
+     * 是否输出统计报告。报告位于 build/reports/easy-transform/transform名称/variant名称.json，
+     * 包含各阶段的累计耗时、处理的类和字节数、各jar和目录的耗时，以及被忽略的异常
+     *
+     * @return true：输出（默认）
+     */
+    protected boolean isReportEnabled() {
+        return true;
+    }
+
+    /**
+     * 是否额外输出Chrome trace event格式的文件（variant名称-trace.json），每个工作线程一行，可在chrome://tracing中查看。
+     * 默认可通过gradle属性{@link #PROPERTY_TRACE}开启
+     *
+     * @return true：输出
+     */
+    protected boolean isTraceEnabled() {
+        Object trace = mProject.findProperty(PROPERTY_TRACE);
+        return ((trace != null) && Boolean.parseBoolean(trace.toString()));
+    }
+
     /**
      * 并行transform开关
      *
@@ -113,11 +442,163 @@ public abstract class EasyTransform extends Transform {
         return true;
     }
 
+    /**
+     * 并行时最多同时执行的任务数，多出的任务排队等待，不会一次性全部提交到线程池
+     *
+     * @return 默认为CPU核数
+     */
+    protected int getParallelism() {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * 并行时同时处理的jar和目录的估算内存总和上限，超出后其余的jar和目录排队，等前面的处理完毕再开始。
+     * 估算值为jar大小的5倍、目录中文件总大小的2倍；单个超出上限的jar或目录在没有其他输入正在处理时仍会开始
+     *
+     * @return 字节数，默认为最大堆内存的1/4
+     */
+    protected long getMemoryBudget() {
+        return Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * 把jar和全量处理的目录交给Gradle Worker API执行时的隔离方式，worker直接把结果写到输出位置。
+     * {@link WorkerIsolationMode#PROCESS}时在独立的worker进程中执行，有单独的堆内存和GC，个别类导致的崩溃也不会拖垮gradle daemon。
+     * worker中通过无参构造函数创建transform实例，子类需提供该构造函数，且修改类时不能依赖project等daemon中的状态；
+     * jar总是流式处理，不使用跨构建缓存和{@link #isJarSkipListEnabled()}，统计报告中也不包含worker中的耗时，
+     * worker中被忽略的异常以警告输出到构建日志。
+     * 开启{@link #isClassIndexEnabled()}或{@link #isDependencyTrackingEnabled()}时不使用worker
+     *
+     * @return null表示在gradle daemon的线程池中执行（默认）
+     */
+    protected WorkerIsolationMode getWorkerIsolationMode() {
+        return null;
+    }
+
+    /**
+     * worker进程的最大堆内存，仅在{@link #getWorkerIsolationMode()}为{@link WorkerIsolationMode#PROCESS}时有效
+     *
+     * @return 如"2g"，null表示使用gradle的默认值（默认）
+     */
+    protected String getWorkerMaxHeapSize() {
+        return null;
+    }
+
+    /**
+     * worker中加载transform所需的classpath，{@link WorkerIsolationMode#NONE}时不使用
+     *
+     * @return 默认为加载该transform的classloader（即buildscript classpath）中的jar和目录，不含gradle自身的类
+     */
+    protected Collection<File> getWorkerClasspath() {
+        Set<File> files = new LinkedHashSet<>();
+        ClassLoader gradle = Project.class.getClassLoader();
+        ClassLoader system = ClassLoader.getSystemClassLoader();
+        for (ClassLoader cl = getClass().getClassLoader(); (cl != null) && (cl != gradle) && (cl != system);
+             cl = cl.getParent()) {
+            if (!(cl instanceof URLClassLoader)) {
+                continue;
+            }
+            for (URL url : ((URLClassLoader) cl).getURLs()) {
+                if ("file".equals(url.getProtocol())) {
+                    try {
+                        files.add(new File(url.toURI()));
+                    } catch (URISyntaxException e) {
+
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * 通过{@link #register(EasyTransform)}注册时，AGP 7.x中改用AGP的AsmClassVisitorFactory修改类，由AGP逐个类处理、
+     * 增量构建和缓存，不再整体拷贝jar和目录；旧版本AGP中仍注册为transform。
+     * 此时transform在AGP的处理线程中通过无参构造函数创建（同{@link #getWorkerIsolationMode()}），按
+     * {@link #getPathFilter()}和{@link #isValidInjectEntry(String)}逐个类筛选，不再调用{@link #isJarFileNeedModify(File)}；
+     * 系统类、{@link #appendPermanentClassPath(String)}添加的类和variant运行时classpath中的依赖类都完整读取；
+     * 其余的类（如当前模块自身的类）通过AGP的ClassContext查找，只有类名、父类、接口和类上的注解（Javassist中没有字段和方法）；
+     * 处理失败的类保留原内容，并输出警告。
+     * 修改逻辑变化时需更新{@link #getTransformVersion()}，AGP才会重新处理已缓存的类
+     *
+     * @return 默认false
+     */
+    protected boolean isInstrumentationEnabled() {
+        return false;
+    }
+
     @Override
     public boolean isIncremental() {
         return true;
     }
 
+    /**
+     * 在内存中修改一个类，不读写任何文件。jar、目录和增量构建中的单个class都以同样的方式修改，区别只在于从哪里读取、写到哪里。
+     * 可在transform之外单独调用（如嵌入其他工具、基准测试），此时只能查找到系统类和{@link #appendPermanentClassPath(String)}添加的类。
+     * 每次调用使用单独的ClassPool，可在多个线程中同时调用
+     *
+     * @param className  类名，如com.lfa.mapleleafdemo.AnotherActivity，按{@link #isValidInjectEntry(String)}判断是否处理
+     * @param classBytes class文件内容，不会被改动
+     * @return 修改后的字节码，null表示不处理或未修改
+     */
+    public byte[] transformClassBytes(String className, byte[] classBytes) {
+        if (!mFiltersReady) {
+            initFilters();
+        }
+        return transformClassBytes(createUnit(), className, classBytes);
+    }
+
+    // 在指定的处理上下文中修改一个类，处理失败的异常记录在unit中
+    byte[] transformClassBytes(TransformUnit unit, String className, byte[] classBytes) {
+        List<EasyTransform> transforms = unit.select(className.replace('.', '/') + ".class");
+        return (transforms.isEmpty() ? null : injectClassBytes(unit, transforms, classBytes));
+    }
+
+    /**
+     * 取得{@link #getClassFilter()}、{@link #getPathFilter()}，每次transform开始时调用一次
+     */
+    synchronized void initFilters() {
+        mClassFilter = getClassFilter();
+        mPathFilter = getPathFilter();
+        mInjectFileOverridden = isInjectFileOverridden();
+        mFiltersReady = true;
+    }
+
+    /**
+     * 目录中的文件是否要处理
+     *
+     * @param file         遍历目录时得到的文件
+     * @param relativePath 以/分隔的相对路径，如com/lfa/mapleleafdemo/AnotherActivity.class
+     */
+    boolean isValidInjectPath(File file, String relativePath) {
+        if ((mPathFilter != null) && !mPathFilter.matches(relativePath)) {
+            return false;
+        }
+        // 未覆写时与isValidInjectFile的默认实现相同，但遍历时已知是文件，不必再stat和取绝对路径
+        return (mInjectFileOverridden ? isValidInjectFile(file) : isValidClassPath(relativePath));
+    }
+
+    /**
+     * jar中的条目是否要处理
+     *
+     * @param entryName jar包中的条目名，如com/lfa/mapleleafdemo/AnotherActivity.class
+     */
+    boolean isValidInjectEntryPath(String entryName) {
+        return ((mPathFilter == null) || mPathFilter.matches(entryName)) && isValidInjectEntry(entryName);
+    }
+
+    private boolean isInjectFileOverridden() {
+        for (Class<?> c = getClass(); c != EasyTransform.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod("isValidInjectFile", File.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+
+            }
+        }
+        return false;
+    }
+
     @Override
     final public Set<? super QualifiedContent.Scope> getScopes() {
         Set<? super QualifiedContent.Scope> set = getRawScopes();
@@ -135,8 +616,32 @@ public abstract class EasyTransform extends Transform {
 
     @Override
     public void transform(TransformInvocation transformInvocation) throws IOException {
+        initFilters();
         TransformOutputProvider outputProvider = transformInvocation.getOutputProvider();
         boolean isIncremental = transformInvocation.isIncremental();
+        boolean trackDependencies = isDependencyTrackingEnabled();
+        String variant = getVariantName(transformInvocation);
+        File indexFile = new File(getStateDir(), "class-index/" + variant);
+        File dependenciesFile = new File(getStateDir(), "dependencies/" + variant);
+        ClassIndex prevIndex = null;
+        ClassDependencies prevDependencies = null;
+        if (isIncremental && (trackDependencies || isClassIndexEnabled())) {
+            prevIndex = ClassIndex.load(indexFile);
+            if (prevIndex != null) {
+                prevIndex.setPermanentClassPath(mPermanentClassPath);
+            }
+        }
+        if (trackDependencies) {
+            prevDependencies = (isIncremental ? ClassDependencies.load(dependenciesFile) : null);
+            // 本次transform成功后才重新保存，失败时下次按全量处理
+            FileUtils.deleteIfExists(dependenciesFile);
+            if ((prevIndex == null) || (prevDependencies == null)) {
+                // 没有上次的记录时无法确定哪些类受影响
+                isIncremental = false;
+                prevIndex = null;
+                prevDependencies = null;
+            }
+        }
         if (!isIncremental) {
             outputProvider.deleteAll();
         }
@@ -145,6 +650,7 @@ public abstract class EasyTransform extends Transform {
             return;
         }
 
+        mMetrics = new TransformMetrics(isTraceEnabled());
         // 添加 android.jar 路径
         BaseExtension be = getExtension(mProject);
         if (be != null) {
@@ -155,95 +661,516 @@ public abstract class EasyTransform extends Transform {
                     try {
                         appendPermanentClassPath(bootClasspath);
                     } catch (NotFoundException e) {
+                        mMetrics.failure(bootClasspath, e);
+                    }
+                }
+            }
+        }
+
+        // 一次性为所有输入建立类索引，各任务查找类时不必再追加、移除classpath；目录只在这里遍历一次，之后复用记录的文件
+        Map<File, Long> sizes = new HashMap<>();
+        long begin = mMetrics.begin();
+        mInputClassPath = createInputClassPath(inputs, transformInvocation.getReferencedInputs(), sizes);
+        mMetrics.end(TransformMetrics.PHASE_WALK, begin);
+        try {
+            ClassIndex classIndex = ((trackDependencies || isClassIndexEnabled())
+                    ? createClassIndex(transformInvocation, prevIndex, indexFile) : null);
+            setClassIndex(classIndex);
+            // 本身没有变化、但依赖的类有变化的jar和class，以输入的jar或目录为key
+            Map<File, List<File>> dependents = Collections.emptyMap();
+            if (trackDependencies) {
+                mDependencies = ((prevDependencies == null) ? new ClassDependencies() : prevDependencies);
+                if (isIncremental) {
+                    dependents = invalidateDependents(transformInvocation, prevIndex, classIndex);
+                }
+            }
+            mWorkers = createWorkerDispatcher(transformInvocation);
+            TransformScheduler scheduler = new TransformScheduler(
+                    isParallel() ? WaitableExecutor.useGlobalSharedThreadPool() : null, getParallelism(),
+                    getMemoryBudget(), getClassBatchSize(), getClassBatchBytes(), mMetrics);
+            // 最大的jar和目录最先开始（最长处理时间优先），缩短构建末尾只剩少数大任务在执行的时间
+            List<QualifiedContent> contents = getContents(inputs);
+            contents.sort(Comparator.comparingLong(
+                    (QualifiedContent c) -> sizes.getOrDefault(c.getFile(), 0L)).reversed());
+            for (QualifiedContent content : contents) {
+                long cost = estimateMemoryCost(content, sizes.getOrDefault(content.getFile(), 0L));
+                if (content instanceof JarInput) {
+                    transformJar(outputProvider, (JarInput) content, isIncremental,
+                            dependents.containsKey(content.getFile()), cost, scheduler);
+                } else if (content instanceof DirectoryInput) {
+                    transformClass(outputProvider, (DirectoryInput) content, isIncremental,
+                            dependents.getOrDefault(content.getFile(), Collections.emptyList()), cost, scheduler);
+                }
+            }
+            scheduler.await();
+            if (mWorkers != null) {
+                long waitBegin = mMetrics.begin();
+                mWorkers.await();
+                mMetrics.end(TransformMetrics.PHASE_WORKER_WAIT, waitBegin);
+            }
+            if (mDependencies != null) {
+                mDependencies.save(dependenciesFile);
+            }
+        } finally {
+            mInputClassPath.close();
+            setClassIndex(null);
+            mDependencies = null;
+            mWorkers = null;
+            JarSkipList skipList = getJarSkipList();
+            if (skipList != null) {
+                skipList.save();
+            }
+            writeReport(transformInvocation, isIncremental);
+        }
+    }
+
+    // isIncremental：实际采用的处理方式，缺少上次的记录时即使AGP请求增量也会全量处理
+    private void writeReport(TransformInvocation transformInvocation, boolean isIncremental) {
+        String variant = getVariantName(transformInvocation);
+        File reportDir = new File(mProject.getBuildDir(), "reports/easy-transform/" + getName());
+        try {
+            if (isReportEnabled()) {
+                Map<String, Object> header = new LinkedHashMap<>();
+                header.put("transform", getName());
+                header.put("variant", variant);
+                header.put("incremental", isIncremental);
+                header.put("parallel", isParallel());
+                header.put("parallelism", getParallelism());
+                header.put("memoryBudget", getMemoryBudget());
+                header.put("streaming", isStreamingJarTransform());
+                header.put("workerIsolation", getEnabledWorkerIsolationMode());
+                mMetrics.writeReport(new File(reportDir, variant + ".json"), header);
+            }
+            mMetrics.writeTrace(new File(reportDir, variant + "-trace.json"));
+        } catch (IOException e) {
+
+        }
+    }
+
+    // 类索引和依赖记录只在daemon中维护，开启时不使用worker
+    private WorkerIsolationMode getEnabledWorkerIsolationMode() {
+        return ((isClassIndexEnabled() || isDependencyTrackingEnabled()) ? null : getWorkerIsolationMode());
+    }
+
+    // 未开启worker或当前环境不支持时返回null
+    private WorkerDispatcher createWorkerDispatcher(TransformInvocation transformInvocation) {
+        WorkerIsolationMode isolationMode = getEnabledWorkerIsolationMode();
+        Context context = transformInvocation.getContext();
+        if ((isolationMode == null) || (context == null) || (context.getWorkerExecutor() == null)) {
+            return null;
+        }
+        // worker中按同样的顺序重新建立输入的索引
+        List<String> classPath = new ArrayList<>();
+        for (Collection<TransformInput> c : Arrays.asList(transformInvocation.getInputs(),
+                transformInvocation.getReferencedInputs())) {
+            for (QualifiedContent content : getContents(c)) {
+                classPath.add(content.getFile().getAbsolutePath());
+            }
+        }
+        TransformWorker.Item template = new TransformWorker.Item(getClass().getName(),
+                UUID.randomUUID().toString(), classPath, new ArrayList<>(mPermanentPaths), getClassPathIndexDir());
+        return new WorkerDispatcher(context.getWorkerExecutor(), isolationMode, getWorkerClasspath(),
+                getWorkerMaxHeapSize(), template);
+    }
+
+    // 处理时的内存占用主要是解析后的类，约为class文件大小的数倍；jar中的class是压缩的，倍数更大
+    private static long estimateMemoryCost(QualifiedContent content, long size) {
+        return size * ((content instanceof JarInput) ? JAR_MEMORY_FACTOR : CLASS_MEMORY_FACTOR);
+    }
+
+    private static String getVariantName(TransformInvocation transformInvocation) {
+        return ((transformInvocation.getContext() == null)
+                ? "unknown" : transformInvocation.getContext().getVariantName());
+    }
+
+    // 各输入并行读取；prev不为null时（增量构建）以其为基础，只重新读取变化的jar和目录中变化的class
+    private ClassIndex createClassIndex(TransformInvocation transformInvocation, ClassIndex prev, File indexFile) {
+        long begin = mMetrics.begin();
+        ClassIndex index = new ClassIndex();
+        List<String> paths = new ArrayList<>();
+        TransformScheduler scheduler = new TransformScheduler(
+                isParallel() ? WaitableExecutor.useGlobalSharedThreadPool() : null, getParallelism(),
+                getMemoryBudget(), 1, 0, mMetrics);
+        for (Collection<TransformInput> c : Arrays.asList(transformInvocation.getInputs(),
+                transformInvocation.getReferencedInputs())) {
+            for (QualifiedContent content : getContents(c)) {
+                if ((content instanceof JarInput) && (((JarInput) content).getStatus() == Status.REMOVED)) {
+                    continue;
+                }
+                String path = content.getFile().getAbsolutePath();
+                paths.add(path);
+                Map<String, ClassIndex.ClassInfo> prevClasses = ((prev == null) ? null : prev.getSource(path));
+                scheduler.execute(() -> {
+                    try {
+                        index.putSource(path, readClassIndexSource(content, prevClasses));
+                    } catch (IOException e) {
+                        mMetrics.failure(path, e);
+                    }
+                });
+            }
+        }
+        scheduler.await();
+        index.commit(paths);
+        index.setPermanentClassPath(mPermanentClassPath);
+        index.save(indexFile);
+        mMetrics.end(TransformMetrics.PHASE_INDEX, begin);
+        return index;
+    }
 
+    // 增量构建中，找出本身没有变化、但修改时读取过的类或查询结果有变化的类，并从依赖记录中移除所有要重新处理的类。
+    // 返回值：要重新处理的jar（值为空列表）和目录中要重新处理的class文件，以输入的jar或目录为key
+    private Map<File, List<File>> invalidateDependents(TransformInvocation transformInvocation,
+                                                      ClassIndex prevIndex, ClassIndex index) {
+        long begin = mMetrics.begin();
+        // 本身有变化（新增、修改、删除）的类，变化的jar中的类都算作有变化
+        Set<String> changed = new HashSet<>();
+        for (Collection<TransformInput> c : Arrays.asList(transformInvocation.getInputs(),
+                transformInvocation.getReferencedInputs())) {
+            for (QualifiedContent content : getContents(c)) {
+                if (content instanceof JarInput) {
+                    if (((JarInput) content).getStatus() != Status.NOTCHANGED) {
+                        String path = content.getFile().getAbsolutePath();
+                        addClassNames(changed, prevIndex.getSource(path));
+                        addClassNames(changed, index.getSource(path));
+                    }
+                } else if (content instanceof DirectoryInput) {
+                    Map<File, Status> changedFiles = ((DirectoryInput) content).getChangedFiles();
+                    if (changedFiles == null) {
+                        continue;
+                    }
+                    for (File file : changedFiles.keySet()) {
+                        String className = ClassIndex.getClassName(content.getFile(), file);
+                        if (className != null) {
+                            changed.add(className);
+                        }
                     }
                 }
             }
         }
 
-        WaitableExecutor executor = (isParallel() ? WaitableExecutor.useGlobalSharedThreadPool() : null);
-        for (TransformInput ti : inputs) {
-            transformJars(outputProvider, ti.getJarInputs(), isIncremental, executor);
-            transformClasses(outputProvider, ti.getDirectoryInputs(), isIncremental, executor);
+        // 变化前后任一次的查询结果中包含变化的类，该查询的结果就可能不同
+        Set<String> changedKeys = new HashSet<>(changed);
+        for (String key : mDependencies.getQueryKeys()) {
+            for (String className : changed) {
+                if (isQueryAffected(key, className, prevIndex) || isQueryAffected(key, className, index)) {
+                    changedKeys.add(key);
+                    break;
+                }
+            }
+        }
+        Set<String> dependents = mDependencies.getDependents(changedKeys);
+        dependents.removeAll(changed);
+        for (String className : changed) {
+            mDependencies.remove(className);
         }
-        if (executor != null) {
-            try {
-                executor.waitForTasksWithQuickFail(true);
-            } catch (InterruptedException e) {
 
+        Map<File, List<File>> result = new HashMap<>();
+        if (!dependents.isEmpty()) {
+            for (QualifiedContent content : getContents(transformInvocation.getInputs())) {
+                File root = content.getFile();
+                if (content instanceof JarInput) {
+                    // jar中的类不能单独处理，整个jar重新处理
+                    Map<String, ClassIndex.ClassInfo> source = index.getSource(root.getAbsolutePath());
+                    if ((((JarInput) content).getStatus() == Status.NOTCHANGED) && (source != null)
+                            && !Collections.disjoint(source.keySet(), dependents)) {
+                        result.put(root, Collections.emptyList());
+                        for (String className : source.keySet()) {
+                            mDependencies.remove(className);
+                        }
+                    }
+                } else if (content instanceof DirectoryInput) {
+                    Map<File, Status> changedFiles = ((DirectoryInput) content).getChangedFiles();
+                    List<File> files = new ArrayList<>();
+                    for (String className : dependents) {
+                        File file = new File(root, className.replace('.', File.separatorChar) + ".class");
+                        if (((changedFiles == null) || !changedFiles.containsKey(file)) && file.isFile()) {
+                            files.add(file);
+                            mDependencies.remove(className);
+                        }
+                    }
+                    if (!files.isEmpty()) {
+                        result.put(root, files);
+                    }
+                }
             }
         }
+        mMetrics.end(TransformMetrics.PHASE_DEPENDENCIES, begin);
+        return result;
     }
 
-    private void transformJars(TransformOutputProvider outputProvider, Collection<JarInput> jarInputs,
-                               boolean isIncremental, WaitableExecutor executor) {
-        if (jarInputs == null) {
-            return;
+    private static void addClassNames(Set<String> set, Map<String, ClassIndex.ClassInfo> classes) {
+        if (classes != null) {
+            set.addAll(classes.keySet());
+        }
+    }
+
+    // className在index中是否属于查询key的结果
+    private static boolean isQueryAffected(String key, String className, ClassIndex index) {
+        if (key.startsWith(ClassDependencies.KEY_SUBTYPES)) {
+            return index.isSubtypeOf(className, key.substring(ClassDependencies.KEY_SUBTYPES.length()));
+        } else if (key.startsWith(ClassDependencies.KEY_ANNOTATED)) {
+            return index.getAnnotations(className).contains(key.substring(ClassDependencies.KEY_ANNOTATED.length()));
+        }
+        return false;
+    }
+
+    // prevClasses：上次保存的该输入中的类，为null时全部重新读取
+    private Map<String, ClassIndex.ClassInfo> readClassIndexSource(
+            QualifiedContent content, Map<String, ClassIndex.ClassInfo> prevClasses) throws IOException {
+        File file = content.getFile();
+        if (content instanceof JarInput) {
+            return (((prevClasses != null) && (((JarInput) content).getStatus() == Status.NOTCHANGED))
+                    ? prevClasses : ClassIndex.readJar(file));
         }
-        for (JarInput ji : jarInputs) {
-            if (isIncremental) {
-                Status status = ji.getStatus();
-                switch (status) {
-                    case ADDED:
-                    case CHANGED:
-                        doTransformJar(outputProvider, ji, executor);
-                        break;
-                    case REMOVED:
-                        deleteJar(outputProvider, ji, executor);
-                        break;
-                    default:
-                        break;
+        Map<File, Status> changedFiles = ((DirectoryInput) content).getChangedFiles();
+        return (((prevClasses != null) && (changedFiles != null))
+                ? ClassIndex.updateDirectory(prevClasses, file, changedFiles) : ClassIndex.readDirectory(getAllFiles(file)));
+    }
+
+    private static List<QualifiedContent> getContents(Collection<TransformInput> inputs) {
+        List<QualifiedContent> contents = new ArrayList<>();
+        if (inputs == null) {
+            return contents;
+        }
+        for (TransformInput ti : inputs) {
+            if (ti.getDirectoryInputs() != null) {
+                contents.addAll(ti.getDirectoryInputs());
+            }
+            if (ti.getJarInputs() != null) {
+                contents.addAll(ti.getJarInputs());
+            }
+        }
+        return contents;
+    }
+
+    // sizes：记录各输入jar或目录的大小，用于调度
+    private IndexedClassPath createInputClassPath(Collection<TransformInput> inputs,
+                                                  Collection<TransformInput> referencedInputs,
+                                                  Map<File, Long> sizes) {
+        IndexedClassPath classPath = new IndexedClassPath();
+        for (Collection<TransformInput> c : Arrays.asList(inputs, referencedInputs)) {
+            for (QualifiedContent content : getContents(c)) {
+                try {
+                    sizes.put(content.getFile(), classPath.add(content.getFile()));
+                } catch (IOException e) {
+                    mMetrics.failure(content.getFile().getAbsolutePath(), e);
                 }
-            } else {
-                doTransformJar(outputProvider, ji, executor);
             }
         }
+        return classPath;
     }
 
-    private void doTransformJar(TransformOutputProvider outputProvider, JarInput ji, WaitableExecutor executor) {
-        if (executor == null) {
-            realDoTransformJar(outputProvider, ji, executor);
+    // forced：jar本身没有变化，但其中的类修改时读取过的类有变化，需要重新处理
+    // cost：估算的处理该jar时的内存占用
+    private void transformJar(TransformOutputProvider outputProvider, JarInput ji, boolean isIncremental,
+                              boolean forced, long cost, TransformScheduler scheduler) {
+        if (isIncremental) {
+            Status status = ji.getStatus();
+            switch (status) {
+                case ADDED:
+                case CHANGED:
+                    doTransformJar(outputProvider, ji, cost, scheduler);
+                    break;
+                case REMOVED:
+                    deleteJar(outputProvider, ji, scheduler);
+                    break;
+                case NOTCHANGED:
+                    if (forced) {
+                        doTransformJar(outputProvider, ji, cost, scheduler);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } else if (ji.getStatus() != Status.REMOVED) {
+            // 增量构建按全量处理时，已删除的jar仍在输入中
+            doTransformJar(outputProvider, ji, cost, scheduler);
+        }
+    }
+
+    private void doTransformJar(TransformOutputProvider outputProvider, JarInput ji, long cost,
+                                TransformScheduler scheduler) {
+        if (mWorkers != null) {
+            submitJar(outputProvider, ji, scheduler);
         } else {
-            executor.execute(() -> {
-                realDoTransformJar(outputProvider, ji, executor);
-                return null;
+            scheduler.executeUnit(cost, () -> realDoTransformJar(outputProvider, ji, scheduler));
+        }
+    }
+
+    // 需要修改的jar交给worker，其余的仍在daemon中拷贝
+    private void submitJar(TransformOutputProvider outputProvider, JarInput ji, TransformScheduler scheduler) {
+        File jarFile = ji.getFile();
+        File destJarFile = getDestJar(outputProvider, ji);
+        File manifestFile = getJarManifestFile(destJarFile);
+        if (isJarFileNeedModify(jarFile)) {
+            mWorkers.submitJar(jarFile, destJarFile, manifestFile, (ji.getStatus() == Status.CHANGED));
+            return;
+        }
+        scheduler.execute(() -> {
+            long begin = mMetrics.begin();
+            copyUnmodifiedJar(outputProvider, ji, manifestFile);
+            mMetrics.unit(ji.getName(), jarFile.length(), begin, false);
+        });
+    }
+
+    // 返回值：该jar全部处理完毕
+    private CompletableFuture<?> realDoTransformJar(TransformOutputProvider outputProvider, JarInput ji,
+                                                    TransformScheduler scheduler) {
+        long begin = mMetrics.begin();
+        File jarFile = ji.getFile();
+        File destJarFile = getDestJar(outputProvider, ji);
+        File manifestFile = getJarManifestFile(destJarFile);
+        TransformUnit unit = createUnit(ji);
+        boolean needModify = unit.isNeedModify();
+        String skipKey = (needModify ? getSkipListKey(jarFile) : null);
+        if ((skipKey != null) && getJarSkipList().contains(skipKey)) {
+            // 上次处理同样内容的jar时没有修改任何类
+            needModify = false;
+        }
+        if (!needModify) {
+            copyUnmodifiedJar(outputProvider, ji, manifestFile);
+            mMetrics.unit(ji.getName(), jarFile.length(), begin, false);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        String cacheKey = getCacheKey(jarFile);
+        if ((cacheKey != null) && restoreFromCache(cacheKey, jarFile, destJarFile)) {
+            if (isStreamingJarTransform()) {
+                saveJarManifest(jarFile, manifestFile);
+            }
+            mMetrics.unit(ji.getName(), jarFile.length(), begin, false);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        boolean hasModified;
+        if (isStreamingJarTransform()) {
+            // 记录依赖时，jar中未变化的条目也可能因依赖的类变化而需要重新处理，其依赖记录也已移除，不能从上次的输出中拷贝
+            boolean changed = ((ji.getStatus() == Status.CHANGED) && (mDependencies == null));
+            try {
+                hasModified = streamTransformJar(unit, jarFile, destJarFile, manifestFile, changed);
+            } catch (IOException e) {
+                mMetrics.failure(jarFile.getAbsolutePath(), e);
+                restoreInputJar(jarFile, destJarFile, manifestFile);
+                mMetrics.unit(ji.getName(), jarFile.length(), begin, false);
+                return CompletableFuture.completedFuture(null);
+            }
+        } else {
+            try {
+                FileUtils.deleteIfExists(manifestFile);
+            } catch (IOException e) {
+                mMetrics.failure(manifestFile.getAbsolutePath(), e);
+            }
+            // 解压后的各class处理完毕，再在后续阶段中打包、拷贝，期间不占用线程等待
+            return scheduler.then(injectJar(ji, unit, scheduler), ijf -> {
+                copyJar(outputProvider, ji, ijf);
+                // 有类处理失败时不缓存，否则之后的构建都会直接取出未修改的结果
+                if ((cacheKey != null) && (unit.getFailure() == null)) {
+                    storeToCache(cacheKey, destJarFile, ijf.mHasModified);
+                }
+                // 有类处理失败时不记录，原因（如缺少引用的类）消除后需要重新处理
+                if ((skipKey != null) && (unit.getFailure() == null)) {
+                    getJarSkipList().put(skipKey, ijf.mHasModified);
+                }
+                mMetrics.unit(ji.getName(), jarFile.length(), begin, ijf.mHasModified);
             });
         }
+        if ((cacheKey != null) && (unit.getFailure() == null)) {
+            storeToCache(cacheKey, destJarFile, hasModified);
+        }
+        if ((skipKey != null) && (unit.getFailure() == null)) {
+            getJarSkipList().put(skipKey, hasModified);
+        }
+        mMetrics.unit(ji.getName(), jarFile.length(), begin, hasModified);
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private void deleteJar(TransformOutputProvider outputProvider, JarInput ji, TransformScheduler scheduler) {
+        scheduler.execute(() -> deleteJar(outputProvider, ji));
+    }
+
+    private void deleteJar(TransformOutputProvider outputProvider, JarInput ji) {
+        File destJarFile = getDestJar(outputProvider, ji);
+        try {
+            FileUtils.deleteIfExists(getJarManifestFile(destJarFile));
+            FileUtils.deleteIfExists(destJarFile);
+        } catch (IOException e) {
+            mMetrics.failure(destJarFile.getAbsolutePath(), e);
+        }
     }
 
-    private void realDoTransformJar(TransformOutputProvider outputProvider, JarInput ji, WaitableExecutor executor) {
-        InjectJarFile ijf = injectJar(ji, executor);
+    // 不需要修改的jar拷贝（或以硬链接的形式放）到输出位置
+    private void copyUnmodifiedJar(TransformOutputProvider outputProvider, JarInput ji, File manifestFile) {
+        try {
+            FileUtils.deleteIfExists(manifestFile);
+        } catch (IOException e) {
+            mMetrics.failure(manifestFile.getAbsolutePath(), e);
+        }
+        InjectJarFile ijf = new InjectJarFile();
+        ijf.mJarFile = ji.getFile();
+        ijf.mHasModified = false;
         copyJar(outputProvider, ji, ijf);
     }
 
-    private void deleteJar(TransformOutputProvider outputProvider, JarInput ji, WaitableExecutor executor) {
-        if (executor == null) {
-            deleteJar(outputProvider, ji);
-        } else {
-            executor.execute(() -> {
-                deleteJar(outputProvider, ji);
-                return null;
-            });
+    // 流式处理jar并保存各条目的信息。changed为true（jar有变化）时，未变化的条目直接从上次的输出jar中拷贝
+    // 返回值：true表示至少有一个条目被修改
+    private boolean streamTransformJar(TransformUnit unit, File jarFile, File destJarFile, File manifestFile,
+                                       boolean changed) throws IOException {
+        JarManifest prevManifest = (changed ? JarManifest.load(manifestFile) : null);
+        File prevDestJarFile = null;
+        try {
+            if ((prevManifest != null) && destJarFile.isFile()) {
+                prevDestJarFile = new File(manifestFile.getParentFile(), UUID.randomUUID().toString() + ".jar");
+                FileUtils.mkdirs(prevDestJarFile.getParentFile());
+                Files.move(destJarFile.toPath(), prevDestJarFile.toPath());
+            }
+            JarManifest manifest = new JarManifest();
+            boolean hasModified = streamInjectJar(unit, jarFile, destJarFile, manifest, prevManifest, prevDestJarFile);
+            manifest.save(manifestFile);
+            return hasModified;
+        } finally {
+            if (prevDestJarFile != null) {
+                try {
+                    FileUtils.deleteIfExists(prevDestJarFile);
+                } catch (IOException e) {
+                    mMetrics.failure(prevDestJarFile.getAbsolutePath(), e);
+                }
+            }
         }
     }
 
-    private void deleteJar(TransformOutputProvider outputProvider, JarInput ji) {
-        File destJarFile = getDestJar(outputProvider, ji);
+    // 流式处理失败时退回到原jar，保证输出完整
+    private void restoreInputJar(File jarFile, File destJarFile, File manifestFile) {
         try {
+            FileUtils.deleteIfExists(manifestFile);
             FileUtils.deleteIfExists(destJarFile);
+            FileUtils.copyFile(jarFile, destJarFile);
         } catch (IOException e) {
-
+            mMetrics.failure(destJarFile.getAbsolutePath(), e);
         }
     }
 
     private void copyJar(TransformOutputProvider outputProvider, JarInput ji, InjectJarFile ijf) {
+        long begin = mMetrics.begin();
+        File destJarFile = getDestJar(outputProvider, ji);
         try {
-            FileUtils.copyFile(ijf.mJarFile, getDestJar(outputProvider, ji));
             if (ijf.mHasModified) {
-                FileUtils.deleteIfExists(ijf.mJarFile);
+                FileUtils.deleteIfExists(destJarFile);
+                FileUtils.mkdirs(destJarFile.getParentFile());
+                Files.move(ijf.mJarFile.toPath(), destJarFile.toPath());
+            } else {
+                OutputFiles.linkOrCopy(ijf.mJarFile, destJarFile, isHardLinkAllowed());
             }
         } catch (IOException e) {
-
+            mMetrics.failure(destJarFile.getAbsolutePath(), e);
+        } finally {
+            mMetrics.end(TransformMetrics.PHASE_COPY, begin);
+            if (ijf.mHasModified) {
+                try {
+                    FileUtils.deleteIfExists(ijf.mJarFile);
+                } catch (IOException e) {
+                    mMetrics.failure(ijf.mJarFile.getAbsolutePath(), e);
+                }
+            }
         }
     }
 
@@ -252,302 +1179,757 @@ public abstract class EasyTransform extends Transform {
                 ji.getContentTypes(), ji.getScopes(), Format.JAR);
     }
 
-    private void transformClasses(TransformOutputProvider outputProvider,
-                                  Collection<DirectoryInput> directoryInputs, boolean isIncremental,
-                                  WaitableExecutor executor) {
-        if (directoryInputs == null) {
-            return;
-        }
-        for (DirectoryInput diExcludePackage : directoryInputs) {
-            if (isIncremental) {
-                incrementalTransformClass(outputProvider, diExcludePackage, executor);
-            } else {
-                fullTransformClass(outputProvider, diExcludePackage, executor);
-            }
+    // forcedFiles：本身没有变化，但修改时读取过的类有变化，需要重新处理的class文件
+    // cost：估算的全量处理该目录时的内存占用，增量处理时只涉及变化的class，不受内存预算限制
+    private void transformClass(TransformOutputProvider outputProvider, DirectoryInput diExcludePackage,
+                                boolean isIncremental, List<File> forcedFiles, long cost,
+                                TransformScheduler scheduler) {
+        if (isIncremental) {
+            incrementalTransformClass(outputProvider, diExcludePackage, forcedFiles, scheduler);
+        } else if (mWorkers != null) {
+            mWorkers.submitDirectory(diExcludePackage.getFile(),
+                    getDestDirExcludePackage(outputProvider, diExcludePackage));
+        } else {
+            // 遍历目录也放在线程池中进行，多个目录可同时遍历
+            scheduler.executeUnit(cost, () -> fullTransformClass(outputProvider, diExcludePackage, scheduler));
         }
     }
 
-    private void incrementalTransformClass(TransformOutputProvider outputProvider,
-                                           DirectoryInput diExcludePackage, WaitableExecutor executor) {
+    private void incrementalTransformClass(TransformOutputProvider outputProvider, DirectoryInput diExcludePackage,
+                                           List<File> forcedFiles, TransformScheduler scheduler) {
         // diExcludePackage.getFile()：不包含包名的文件夹，类似.../app/build/tmp/kotlin-classes/debug
         Map<File, Status> fileStatusMap = diExcludePackage.getChangedFiles();
         if (fileStatusMap == null) {
-            return;
+            if (forcedFiles.isEmpty()) {
+                return;
+            }
+            fileStatusMap = Collections.emptyMap();
         }
+        long begin = mMetrics.begin();
+        List<File> modifiedFiles = new ArrayList<>(forcedFiles);
+        List<File> removedFiles = new ArrayList<>();
         fileStatusMap.forEach((classFile, status) -> {
             // classFile：class文件，如.../app/build/tmp/kotlin-classes/debug/com/lfa/mapleleafdemo/AnotherActivity.class
             switch (status) {
                 case ADDED:
                 case CHANGED:
-                    transformModifySingleClass(outputProvider, diExcludePackage, classFile, executor);
+                    modifiedFiles.add(classFile);
                     break;
                 case REMOVED:
-                    transformDeleteSingleClass(outputProvider, diExcludePackage, classFile, executor);
+                    removedFiles.add(classFile);
                     break;
                 default:
                     break;
             }
         });
+        String root = diExcludePackage.getFile().getAbsolutePath();
+        // 类似 .../app/build/intermediates/transforms/MapleleafTransform/debug/0
+        File destDir = getDestDirExcludePackage(outputProvider, diExcludePackage);
+        TransformUnit unit = createUnit(diExcludePackage);
+        AtomicBoolean hasModified = new AtomicBoolean();
+        List<CompletableFuture<Void>> stages = new ArrayList<>();
+        stages.addAll(scheduler.executeBatched(modifiedFiles, File::length, classFile -> {
+            if (transformModifySingleClass(classFile, InputFile.getRelativePath(root, classFile.getAbsolutePath()),
+                    destDir, unit)) {
+                hasModified.set(true);
+            }
+        }));
+        stages.addAll(scheduler.executeBatched(removedFiles, classFile -> 0L,
+                classFile -> transformDeleteSingleClass(
+                        new File(destDir, InputFile.getRelativePath(root, classFile.getAbsolutePath())))));
+        long size = modifiedFiles.stream().mapToLong(File::length).sum();
+        scheduler.afterAll(stages, () -> {
+            mMetrics.unit(diExcludePackage.getName(), size, begin, hasModified.get());
+            return null;
+        });
     }
 
     // diExcludePackage.getFile()：不包含包名的文件夹，类似.../app/build/tmp/kotlin-classes/debug
-    private void fullTransformClass(TransformOutputProvider outputProvider,
-                                    DirectoryInput diExcludePackage, WaitableExecutor executor) {
-        CountDownLatch countDownLatch = injectClasses(diExcludePackage.getFile().getAbsolutePath(), executor);
-        if (countDownLatch != null) {
-            try {
-                // 因后续要拷贝整个class文件目录到新路径，所以这里需要等待原目录所有文件都处理完毕
-                countDownLatch.await();
-            } catch (InterruptedException e) {
+    // 逐个文件处理，修改后的class直接写到输出目录，其余文件拷贝（或以硬链接的形式放）到输出目录，输入目录保持不变
+    // 返回值：该目录全部处理完毕
+    private CompletableFuture<?> fullTransformClass(TransformOutputProvider outputProvider,
+                                                    DirectoryInput diExcludePackage, TransformScheduler scheduler) {
+        long begin = mMetrics.begin();
+        List<InputFile> files = getAllFiles(diExcludePackage.getFile());
+        if (files.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
 
+        // 同一目录下的类共用一个ClassPool，目录处理完后随之释放
+        TransformUnit unit = createUnit(diExcludePackage);
+        File destDir = getDestDirExcludePackage(outputProvider, diExcludePackage);
+        AtomicBoolean hasModified = new AtomicBoolean();
+        List<CompletableFuture<Void>> stages = scheduler.executeBatched(files, f -> f.mSize, f -> {
+            if (transformSingleFile(f.mFile, f.mRelativePath, new File(destDir, f.mRelativePath), unit)) {
+                hasModified.set(true);
             }
+        });
+        long size = files.stream().mapToLong(f -> f.mSize).sum();
+        return scheduler.afterAll(stages, () -> {
+            mMetrics.unit(diExcludePackage.getName(), size, begin, hasModified.get());
+            return null;
+        });
+    }
+
+    // relativePath：from在输入目录中以/分隔的相对路径
+    // 返回值：true表示输出的文件被修改过；处理或写出失败时记录在unit中（见TransformUnit#getFailure()）
+    private boolean transformSingleFile(File from, String relativePath, File to, TransformUnit unit) {
+        byte[] modified = injectSingleClass(from, relativePath, unit);
+        long begin = mMetrics.begin();
+        try {
+            if (modified == null) {
+                OutputFiles.linkOrCopy(from, to, isHardLinkAllowed());
+                mMetrics.end(TransformMetrics.PHASE_COPY, begin);
+            } else {
+                OutputFiles.write(to, modified);
+                mMetrics.bytesWritten(modified.length);
+                mMetrics.end(TransformMetrics.PHASE_OUTPUT, begin);
+            }
+        } catch (IOException e) {
+            mMetrics.failure(to.getAbsolutePath(), e);
+            unit.classFailed(e);
         }
-        if (executor == null) {
-            copyClasses(outputProvider, diExcludePackage);
-        } else {
-            executor.execute(() -> {
-                copyClasses(outputProvider, diExcludePackage);
-                return null;
-            });
-        }
+        return (modified != null);
     }
 
-    // pathExcludePackage：不包含包名的文件夹，类似.../app/build/tmp/kotlin-classes/debug
-    private CountDownLatch injectClasses(String pathExcludePackage, WaitableExecutor executor) {
-        List<File> filesToInject = getInjectFiles(pathExcludePackage);
-        int size = filesToInject.size();
-        if (size < 1) {
-            return null;
+    // 解压jar后的临时目录中的class，修改后写回原位置
+    // pathExcludePackage：不包含包名的文件夹
+    // hasModified：有类被修改时置为true
+    // 返回值：各class的处理任务
+    private List<CompletableFuture<Void>> injectClasses(File dirExcludePackage, TransformUnit unit,
+                                                        AtomicBoolean hasModified, TransformScheduler scheduler) {
+        List<InputFile> filesToInject = getInjectFiles(dirExcludePackage, unit);
+        if (filesToInject.isEmpty()) {
+            return Collections.emptyList();
         }
 
-        CountDownLatch countDownLatch = ((executor == null) ? null : new CountDownLatch(size));
-        for (File file : filesToInject) {
-            if (countDownLatch == null) {
-                injectSingleClass(file, pathExcludePackage);
-            } else {
-                executor.execute(() -> {
-                    try {
-                        injectSingleClass(file, pathExcludePackage);
-                    } finally {
-                        countDownLatch.countDown();
-                    }
-                    return null;
-                });
+        return scheduler.executeBatched(filesToInject, f -> f.mSize, f -> {
+            if (injectClassInPlace(f, unit)) {
+                hasModified.set(true);
             }
-        }
-        return countDownLatch;
+        });
     }
 
-    private List<File> getInjectFiles(String pathExcludePackage) {
-        List<File> fs = null;
-        Path path = Paths.get(pathExcludePackage);
+    // 只按路径筛选，不读取文件内容
+    private List<InputFile> getInjectFiles(File dirExcludePackage, TransformUnit unit) {
+        List<InputFile> fs = getAllFiles(dirExcludePackage);
+        fs.removeIf(f -> unit.select(f.mFile, f.mRelativePath).isEmpty());
+        return fs;
+    }
+
+    // 输入目录在建立mInputClassPath时已遍历过，直接使用当时记录的文件；其他目录（如解压jar的临时目录）在这里遍历
+    private List<InputFile> getAllFiles(File dirExcludePackage) {
+        List<InputFile> files = mInputClassPath.getFiles(dirExcludePackage);
+        if (files != null) {
+            return new ArrayList<>(files);
+        }
+        long begin = mMetrics.begin();
+        List<InputFile> fs = new ArrayList<>();
+        Path root = dirExcludePackage.toPath();
+        String rootPath = root.toString();
         try {
-            fs = Files.walk(path)
-                    .map(Path::toFile)
-                    .filter(this::isValidInjectFile)
-                    .collect(Collectors.toList());
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        fs.add(new InputFile(file.toFile(), InputFile.getRelativePath(rootPath, file.toString()),
+                                attrs.size()));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
         } catch (IOException e) {
-
+            mMetrics.failure(dirExcludePackage.getAbsolutePath(), e);
         }
-        return (fs == null) ? Collections.emptyList() : fs;
+        mMetrics.end(TransformMetrics.PHASE_WALK, begin);
+        return fs;
     }
 
-    // diExcludePackage.getFile()：不包含包名的文件夹，类似.../app/build/tmp/kotlin-classes/debug
     // classFile：class文件，如.../app/build/tmp/kotlin-classes/debug/com/lfa/mapleleafdemo/AnotherActivity.class
-    private void transformModifySingleClass(TransformOutputProvider outputProvider,
-                                            DirectoryInput diExcludePackage, File classFile,
-                                            WaitableExecutor executor) {
-        if (executor == null) {
-            transformModifySingleClass(outputProvider, diExcludePackage, classFile);
-        } else {
-            executor.execute(() -> {
-                transformModifySingleClass(outputProvider, diExcludePackage, classFile);
-                return null;
-            });
+    // relativePath：如com/lfa/mapleleafdemo/AnotherActivity.class
+    // destDir：不包含包名的输出目录
+    // 返回值：true表示输出的文件被修改过，命中缓存时返回false
+    private boolean transformModifySingleClass(File classFile, String relativePath, File destDir,
+                                               TransformUnit unit) {
+        File destClassFile = new File(destDir, relativePath);
+        String cacheKey = (!unit.select(classFile, relativePath).isEmpty() ? getCacheKey(classFile) : null);
+        if ((cacheKey != null) && restoreFromCache(cacheKey, classFile, destClassFile)) {
+            return false;
         }
-    }
-
-    private void transformModifySingleClass(TransformOutputProvider outputProvider,
-                                            DirectoryInput diExcludePackage, File classFile) {
-        injectSingleClass(classFile, diExcludePackage.getFile().getAbsolutePath());
-        copySingleClass(outputProvider, diExcludePackage, classFile);
-    }
 
-    // diExcludePackage.getFile()：不包含包名的文件夹，类似.../app/build/tmp/kotlin-classes/debug
-    // classFile：class文件，如.../app/build/tmp/kotlin-classes/debug/com/lfa/mapleleafdemo/AnotherActivity.class
-    private void transformDeleteSingleClass(TransformOutputProvider outputProvider,
-                                            DirectoryInput diExcludePackage, File classFile,
-                                            WaitableExecutor executor) {
-        if (executor == null) {
-            transformDeleteSingleClass(outputProvider, diExcludePackage, classFile);
-        } else {
-            executor.execute(() -> {
-                transformDeleteSingleClass(outputProvider, diExcludePackage, classFile);
-                return null;
-            });
+        // 同一目录中的类并行处理，单独记录该类是否失败
+        TransformUnit classUnit = unit.fork();
+        boolean hasModified = transformSingleFile(classFile, relativePath, destClassFile, classUnit);
+        if ((cacheKey != null) && (classUnit.getFailure() == null)) {
+            storeToCache(cacheKey, destClassFile, hasModified);
         }
+        return hasModified;
     }
 
-    private void transformDeleteSingleClass(TransformOutputProvider outputProvider,
-                                            DirectoryInput diExcludePackage, File classFile) {
-        File destClassFile = getClassFileDestPath(outputProvider, diExcludePackage, classFile);
+    // destClassFile：已删除的class在输出目录中对应的文件
+    private void transformDeleteSingleClass(File destClassFile) {
         try {
             FileUtils.deleteIfExists(destClassFile);
         } catch (IOException e) {
-
+            mMetrics.failure(destClassFile.getAbsolutePath(), e);
         }
     }
 
     // classFile：class文件，如.../app/build/tmp/kotlin-classes/debug/com/lfa/mapleleafdemo/AnotherActivity.class
-    // pathExcludePackage：不包含包名的文件夹，类似.../app/build/tmp/kotlin-classes/debug
-    private boolean injectSingleClass(File classFile, String pathExcludePackage) {
-        ClassInfo cInfo = null;
-        InputStream is = null;
+    // relativePath：如com/lfa/mapleleafdemo/AnotherActivity.class
+    // unit：classFile所在输入的处理上下文
+    // 返回修改后的class字节码，不需处理、未修改或处理失败时返回null。classFile本身不会被改动
+    private byte[] injectSingleClass(File classFile, String relativePath, TransformUnit unit) {
+        List<EasyTransform> transforms = unit.select(classFile, relativePath);
+        if (transforms.isEmpty()) {
+            return null;
+        }
         try {
-            cInfo = getClassInfo(pathExcludePackage);
-            is = new FileInputStream(classFile.getAbsoluteFile());
-            CtClass c = cInfo.mClassPool.makeClass(is);
-            return modifyClass(c, pathExcludePackage);
+            return injectClassBytes(unit, transforms, Files.readAllBytes(classFile.toPath()));
         } catch (IOException e) {
+            mMetrics.failure(classFile.getAbsolutePath(), e);
+            unit.classFailed(e);
+            return null;
+        }
+    }
 
-        } catch (NotFoundException e) {
+    // 返回值：true表示该类被修改
+    private boolean injectClassInPlace(InputFile f, TransformUnit unit) {
+        File classFile = f.mFile;
+        byte[] modified = injectSingleClass(classFile, f.mRelativePath, unit);
+        if (modified != null) {
+            long begin = mMetrics.begin();
+            try {
+                OutputFiles.write(classFile, modified);
+                mMetrics.bytesWritten(modified.length);
+            } catch (IOException e) {
+                mMetrics.failure(classFile.getAbsolutePath(), e);
+            }
+            mMetrics.end(TransformMetrics.PHASE_OUTPUT, begin);
+        }
+        return (modified != null);
+    }
 
-        } catch (CannotCompileException e) {
+    // 解压 -> 逐个处理class -> 打包，打包阶段在所有class处理完后才提交，不阻塞等待。
+    // 没有类被修改时不再打包，直接使用原jar
+    private CompletableFuture<InjectJarFile> injectJar(JarInput ji, TransformUnit unit, TransformScheduler scheduler) {
+        InjectJarFile ijf = new InjectJarFile();
 
-        } finally {
-            if (cInfo != null) {
-                cInfo.mClassPool.removeClassPath(cInfo.mClassPath);
+        File jarFile = ji.getFile();
+        File jarParentDir = jarFile.getParentFile();
+        File tmpDir = new File(jarParentDir, UUID.randomUUID().toString());
+        long begin = mMetrics.begin();
+        ZipUtil.unpack(jarFile, tmpDir);
+        mMetrics.end(TransformMetrics.PHASE_UNPACK, begin);
+        mMetrics.bytesRead(jarFile.length());
+
+        AtomicBoolean hasModified = new AtomicBoolean();
+        List<CompletableFuture<Void>> stages = injectClasses(tmpDir, unit, hasModified, scheduler);
+        return scheduler.afterAll(stages, () -> {
+            if (hasModified.get()) {
+                File modifiedJarFile = new File(jarParentDir, UUID.randomUUID().toString());
+                long packBegin = mMetrics.begin();
+                ZipUtil.pack(tmpDir, modifiedJarFile, (getJarEntryCompressMethod() == ZipEntry.STORED)
+                        ? Deflater.NO_COMPRESSION : getJarDeflateLevel());
+                mMetrics.end(TransformMetrics.PHASE_PACK, packBegin);
+                mMetrics.bytesWritten(modifiedJarFile.length());
+                ijf.mJarFile = modifiedJarFile;
+            } else {
+                ijf.mJarFile = jarFile;
             }
+            ijf.mHasModified = hasModified.get();
+            try {
+                FileUtils.deleteRecursivelyIfExists(tmpDir);
+            } catch (IOException e) {
+                mMetrics.failure(tmpDir.getAbsolutePath(), e);
+            }
+            return ijf;
+        });
+    }
 
-            if (is != null) {
-                try {
-                    is.close();
-                } catch (IOException e) {
-
+    // 逐个读取输入jar中的条目，修改后直接写入目标jar，内存中只保留当前处理的class。
+    // 未修改的条目（class、资源、META-INF等）按原压缩数据和CRC直接拷贝，不做解压和重新压缩
+    // prevManifest、prevDestJarFile不为null时，与上次相同的条目直接从上次的输出jar中拷贝，不再重新transform
+    // manifest：记录本次输入jar中各条目的信息，供下次使用
+    // 返回值：true表示至少有一个条目被修改
+    private boolean streamInjectJar(TransformUnit unit, File jarFile, File destJarFile, JarManifest manifest,
+                                    JarManifest prevManifest, File prevDestJarFile)
+            throws IOException {
+        boolean hasModified = false;
+        ZipFile prevZf = null;
+        try {
+            // 目标jar可能是指向输入的硬链接，必须先删除，不能直接覆盖写入
+            FileUtils.deleteIfExists(destJarFile);
+            FileUtils.mkdirs(destJarFile.getParentFile());
+            if ((prevManifest != null) && (prevDestJarFile != null)) {
+                prevZf = new ZipFile(prevDestJarFile);
+            }
+            try (ZipFile zf = new ZipFile(jarFile);
+                 ZipArchiveOutputStream zos = new ZipArchiveOutputStream(destJarFile)) {
+                zos.setMethod(getJarEntryCompressMethod());
+                zos.setLevel(getJarDeflateLevel());
+                Enumeration<ZipArchiveEntry> entries = zf.getEntriesInPhysicalOrder();
+                while (entries.hasMoreElements()) {
+                    ZipArchiveEntry entry = entries.nextElement();
+                    manifest.put(entry);
+                    byte[] modified = null;
+                    List<EasyTransform> transforms = (entry.isDirectory()
+                            ? Collections.emptyList() : unit.select(entry.getName()));
+                    if (!transforms.isEmpty()) {
+                        ZipArchiveEntry prevEntry = ((prevZf != null) && prevManifest.isSame(entry))
+                                ? prevZf.getEntry(entry.getName()) : null;
+                        if (prevEntry != null) {
+                            long begin = mMetrics.begin();
+                            try (InputStream raw = prevZf.getRawInputStream(prevEntry)) {
+                                zos.addRawArchiveEntry(prevEntry, raw);
+                            }
+                            mMetrics.end(TransformMetrics.PHASE_COPY, begin);
+                            hasModified |= (prevEntry.getCrc() != entry.getCrc());
+                            continue;
+                        }
+                        modified = injectClassBytes(unit, transforms, readEntry(zf, entry));
+                    }
+                    long begin = mMetrics.begin();
+                    if (modified == null) {
+                        try (InputStream raw = zf.getRawInputStream(entry)) {
+                            zos.addRawArchiveEntry(entry, raw);
+                        }
+                        mMetrics.end(TransformMetrics.PHASE_COPY, begin);
+                    } else {
+                        hasModified = true;
+                        ZipArchiveEntry outEntry = new ZipArchiveEntry(entry.getName());
+                        outEntry.setTime(entry.getTime());
+                        outEntry.setMethod(getJarEntryCompressMethod());
+                        zos.putArchiveEntry(outEntry);
+                        zos.write(modified);
+                        zos.closeArchiveEntry();
+                        mMetrics.bytesWritten(modified.length);
+                        mMetrics.end(TransformMetrics.PHASE_OUTPUT, begin);
+                    }
                 }
             }
+        } finally {
+            if (prevZf != null) {
+                prevZf.close();
+            }
         }
-        return false;
+        return hasModified;
     }
 
-    private void copySingleClass(TransformOutputProvider outputProvider, DirectoryInput di, File from) {
-        File to = getClassFileDestPath(outputProvider, di, from);
-        try {
-            FileUtils.copyFile(from, to);
+    private void saveJarManifest(File jarFile, File manifestFile) {
+        JarManifest manifest = new JarManifest();
+        try (ZipFile zf = new ZipFile(jarFile)) {
+            Enumeration<ZipArchiveEntry> entries = zf.getEntries();
+            while (entries.hasMoreElements()) {
+                manifest.put(entries.nextElement());
+            }
         } catch (IOException e) {
-
+            mMetrics.failure(jarFile.getAbsolutePath(), e);
+            return;
         }
+        manifest.save(manifestFile);
+    }
+
+    // 类似 .../app/build/intermediates/easy-transform/MapleleafTransform
+    private File getStateDir() {
+        return new File(mProject.getBuildDir(), "intermediates/easy-transform/" + getName());
     }
 
-    private File getClassFileDestPath(TransformOutputProvider outputProvider,
-                                      DirectoryInput diExcludePackage, File fromClassFile) {
-        // 类似 .../app/build/tmp/kotlin-classes/debug/com/lfa/mapleleafdemo/AnotherActivity.class
-        String fromClassFilePath = fromClassFile.getAbsolutePath();
+    private File getJarManifestFile(File destJarFile) {
+        String name = UUID.nameUUIDFromBytes(destJarFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8))
+                .toString();
+        return new File(getStateDir(), "manifests/" + name);
+    }
 
-        // 类似 .../app/build/tmp/kotlin-classes/debug
-        String fromDirExcludePackagePath = diExcludePackage.getFile().getAbsolutePath();
+    private static byte[] readEntry(ZipFile zf, ZipArchiveEntry entry) throws IOException {
+        try (InputStream is = zf.getInputStream(entry)) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(
+                    (entry.getSize() > 0) ? (int) entry.getSize() : 8192);
+            byte[] buffer = new byte[8192];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                bos.write(buffer, 0, len);
+            }
+            return bos.toByteArray();
+        }
+    }
 
-        // 类似 .../app/build/intermediates/transforms/MapleleafTransform/debug/0
-        String toDirExcludePackagePath = getDestDirExcludePackage(outputProvider, diExcludePackage).getAbsolutePath();
+    // 所有路径修改类的入口，调用方负责读取输入和写出结果（目标文件、jar输出流）
+    // transforms：依次修改该类的transform，相邻的同一引擎的transform共用一次解析和写出
+    // 返回修改后的class字节码，未修改或处理失败时返回null
+    private byte[] injectClassBytes(TransformUnit unit, List<EasyTransform> transforms, byte[] classBytes) {
+        ClassDependencies dependencies = mDependencies;
+        String className = ((dependencies == null) ? null : ClassFileScanner.readClassName(classBytes));
+        if (className == null) {
+            return doInjectClassBytes(unit, transforms, classBytes);
+        }
+        // 记录修改过程中读取过的类
+        ClassDependencies.begin();
+        try {
+            return doInjectClassBytes(unit, transforms, classBytes);
+        } finally {
+            dependencies.put(className, ClassDependencies.end(), mClassIndex);
+        }
+    }
 
-        // 类似 .../app/build/intermediates/transforms/MapleleafTransform/debug/0/com/lfa/mapleleafdemo/AnotherActivity.class
-        return new File(fromClassFilePath.replace(fromDirExcludePackagePath, toDirExcludePackagePath));
+    private byte[] doInjectClassBytes(TransformUnit unit, List<EasyTransform> transforms, byte[] classBytes) {
+        mMetrics.classScanned(classBytes.length);
+        byte[] modified = null;
+        int start = 0;
+        while (start < transforms.size()) {
+            TransformEngine engine = transforms.get(start).getTransformEngine();
+            int end = start + 1;
+            while ((end < transforms.size()) && (transforms.get(end).getTransformEngine() == engine)) {
+                end++;
+            }
+            byte[] input = ((modified == null) ? classBytes : modified);
+            List<EasyTransform> group = new ArrayList<>(end - start);
+            for (EasyTransform t : transforms.subList(start, end)) {
+                long begin = mMetrics.begin();
+                boolean matches = ClassFileScanner.matches(input, t.mClassFilter);
+                mMetrics.end(TransformMetrics.PHASE_SCAN, begin);
+                if (matches) {
+                    group.add(t);
+                }
+            }
+            byte[] output = null;
+            if (!group.isEmpty()) {
+                output = ((engine == TransformEngine.ASM)
+                        ? injectClassBytesByAsm(unit, group, input) : injectClassBytesByJavassist(unit, group, input));
+            }
+            if (output != null) {
+                modified = output;
+            }
+            start = end;
+        }
+        if (modified != null) {
+            mMetrics.classModified();
+        }
+        return modified;
     }
 
-    private InjectJarFile injectJar(JarInput ji, WaitableExecutor executor) {
-        InjectJarFile ijf = new InjectJarFile();
+    private byte[] injectClassBytesByJavassist(TransformUnit unit, List<EasyTransform> transforms,
+                                               byte[] classBytes) {
+        CtClass c = null;
+        try {
+            long begin = mMetrics.begin();
+            c = unit.getClassPool().makeClass(new ByteArrayInputStream(classBytes));
+            mMetrics.end(TransformMetrics.PHASE_PARSE, begin);
+            begin = mMetrics.begin();
+            boolean hasModified = false;
+            for (EasyTransform t : transforms) {
+                hasModified |= t.justModifyNotWriteBack(c);
+            }
+            mMetrics.end(TransformMetrics.PHASE_MODIFY, begin);
+            if (hasModified) {
+                if (c.isFrozen()) {
+                    c.defrost();
+                }
+                begin = mMetrics.begin();
+                byte[] bytes = c.toBytecode();
+                mMetrics.end(TransformMetrics.PHASE_WRITE, begin);
+                return bytes;
+            }
+        } catch (IOException | CannotCompileException | RuntimeException e) {
+            classFailed(unit, (c == null) ? "<unknown>" : c.getName(), e);
+        } finally {
+            // 无论是否修改都从ClassPool中移除，避免所有类常驻内存
+            if (c != null) {
+                c.detach();
+            }
+        }
+        return null;
+    }
 
-        File jarFile = ji.getFile();
-        if (!isJarFileNeedModify(jarFile)) {
-            ijf.mJarFile = jarFile;
-            ijf.mHasModified = false;
-            return ijf;
+    // 直接在字节数组上处理，不经过ClassPool。各transform的ClassVisitor依次串联，只读取和写出一次
+    private byte[] injectClassBytesByAsm(TransformUnit unit, List<EasyTransform> transforms, byte[] classBytes) {
+        String className = "<unknown>";
+        try {
+            long begin = mMetrics.begin();
+            ClassReader cr = new ClassReader(classBytes);
+            className = cr.getClassName().replace('/', '.');
+            mMetrics.end(TransformMetrics.PHASE_PARSE, begin);
+            int flags = 0;
+            for (EasyTransform t : transforms) {
+                flags |= t.getClassWriterFlags();
+            }
+            ClassWriter cw = new AsmClassWriter(cr, flags, mInputClassPath, mPermanentClassPath,
+                    new ClassClassPath(Object.class), unit.getClassPath());
+            ClassVisitor cv = cw;
+            // 所有ClassVisitor都会标记修改时，以标记判断是否修改
+            boolean marked = true;
+            for (int i = transforms.size() - 1; i >= 0; i--) {
+                ClassVisitor visitor = transforms.get(i).createClassVisitor(className, cv);
+                if (visitor != null) {
+                    cv = visitor;
+                    marked &= transforms.get(i).isClassModifiedMarked();
+                }
+            }
+            if (cv == cw) {
+                return null;
+            }
+            boolean[] modified = sClassModified.get();
+            modified[0] = false;
+            // 重新计算栈帧时原有的栈帧无用，读取时直接跳过
+            begin = mMetrics.begin();
+            cr.accept(cv, ((flags & ClassWriter.COMPUTE_FRAMES) != 0) ? ClassReader.SKIP_FRAMES : 0);
+            mMetrics.end(TransformMetrics.PHASE_MODIFY, begin);
+            if (marked && !modified[0]) {
+                return null;
+            }
+            begin = mMetrics.begin();
+            byte[] bytes = cw.toByteArray();
+            mMetrics.end(TransformMetrics.PHASE_WRITE, begin);
+            // ClassVisitor可能包装了所有类、只修改其中少数，写出的内容与原来相同时按未修改处理
+            return (Arrays.equals(bytes, classBytes) ? null : bytes);
+        } catch (RuntimeException e) {
+            classFailed(unit, className, e);
+            return null;
         }
+    }
 
-        File jarParentDir = jarFile.getParentFile();
-        File tmpDir = new File(jarParentDir, UUID.randomUUID().toString());
-        ZipUtil.unpack(jarFile, tmpDir);
+    private void classFailed(TransformUnit unit, String className, Throwable t) {
+        mMetrics.classFailed(className, t);
+        unit.classFailed(t);
+    }
 
-        CountDownLatch countDownLatch = injectClasses(tmpDir.getAbsolutePath(), executor);
-        if (countDownLatch != null) {
-            try {
-                countDownLatch.await();
-            } catch (InterruptedException e) {
+    // 返回值类似 .../app/build/intermediates/transforms/MapleleafTransform/debug/0
+    private File getDestDirExcludePackage(TransformOutputProvider outputProvider, DirectoryInput diExcludePackage) {
+        return outputProvider.getContentLocation(diExcludePackage.getName(),
+                diExcludePackage.getContentTypes(), diExcludePackage.getScopes(), Format.DIRECTORY);
+    }
 
-            }
+    // 返回值为null表示没有版本号，不能跨构建复用transform结果
+    private String getTransformIdentity() {
+        if (getTransformVersion() == null) {
+            return null;
+        }
+        return getClass().getName() + ":" + getTransformVersion() + ":" + getTransformEngine() + ":"
+                + getJarEntryCompressMethod() + ":" + getJarDeflateLevel();
+    }
+
+    private synchronized TransformCache getTransformCache() {
+        String identity;
+        if ((mTransformCache == null) && !isDependencyTrackingEnabled()
+                && ((identity = getTransformIdentity()) != null)) {
+            mTransformCache = new TransformCache(getTransformCacheDir(), getTransformCacheMaxSize(), identity);
+        }
+        return mTransformCache;
+    }
+
+    private synchronized JarSkipList getJarSkipList() {
+        String identity;
+        if ((mJarSkipList == null) && isJarSkipListEnabled() && !isDependencyTrackingEnabled()
+                && ((identity = getTransformIdentity()) != null)) {
+            mJarSkipList = new JarSkipList(new File(getStateDir(), "skip-jars"), identity);
         }
+        return mJarSkipList;
+    }
 
-        File modifiedJarFile = new File(jarParentDir, UUID.randomUUID().toString());
-        ZipUtil.pack(tmpDir, modifiedJarFile);
+    // 返回值为null表示不使用skip list
+    private String getSkipListKey(File jarFile) {
+        if (getJarSkipList() == null) {
+            return null;
+        }
+        long begin = mMetrics.begin();
         try {
-            FileUtils.deleteRecursivelyIfExists(tmpDir);
+            return JarSkipList.getKey(jarFile);
         } catch (IOException e) {
-
+            mMetrics.failure(jarFile.getAbsolutePath(), e);
+            return null;
+        } finally {
+            mMetrics.end(TransformMetrics.PHASE_SKIP_LIST, begin);
         }
-        ijf.mJarFile = modifiedJarFile;
-        ijf.mHasModified = true;
-        return ijf;
     }
 
-    private void copyClasses(TransformOutputProvider outputProvider, DirectoryInput diExcludePackage) {
-        File toDirExcludePackagePath = getDestDirExcludePackage(outputProvider, diExcludePackage);
+    private boolean restoreFromCache(String cacheKey, File input, File dest) {
+        long begin = mMetrics.begin();
+        boolean restored = getTransformCache().restore(cacheKey, input, dest);
+        mMetrics.end(TransformMetrics.PHASE_CACHE, begin);
+        return restored;
+    }
+
+    private void storeToCache(String cacheKey, File output, boolean modified) {
+        long begin = mMetrics.begin();
+        getTransformCache().store(cacheKey, output, modified);
+        mMetrics.end(TransformMetrics.PHASE_CACHE, begin);
+    }
+
+    // 返回值为null表示不使用缓存
+    private String getCacheKey(File input) {
+        TransformCache cache = getTransformCache();
+        if (cache == null) {
+            return null;
+        }
         try {
-            FileUtils.copyDirectory(diExcludePackage.getFile(), toDirExcludePackagePath);
+            return cache.getKey(input);
         } catch (IOException e) {
+            mMetrics.failure(input.getAbsolutePath(), e);
+            return null;
+        }
+    }
 
+    private synchronized ClassPool getClassPool() {
+        if (mClassPool == null) {
+            mClassPool = new BoundedClassPool(null, getMaxCachedClasses());
+            mClassPool.appendSystemPath();
+            mClassPool.appendClassPath(mPermanentClassPath);
         }
+        return mClassPool;
     }
 
-    // 返回值类似 .../app/build/intermediates/transforms/MapleleafTransform/debug/0
-    private File getDestDirExcludePackage(TransformOutputProvider outputProvider, DirectoryInput diExcludePackage) {
-        return outputProvider.getContentLocation(diExcludePackage.getName(),
-                diExcludePackage.getContentTypes(), diExcludePackage.getScopes(), Format.DIRECTORY);
+    /**
+     * 创建一个输入（jar或目录）的处理上下文，jar不需要修改时其中不包含任何transform
+     */
+    TransformUnit createUnit(QualifiedContent content) {
+        boolean needModify = (!(content instanceof JarInput) || isJarFileNeedModify(content.getFile()));
+        return new TransformUnit(createUnitClassPool(),
+                needModify ? Collections.singletonList(this) : Collections.emptyList());
     }
 
-    private ClassPool getClassPool() {
-        return mClassPool;
+    /**
+     * 创建不属于任何输入的处理上下文，用于单独修改类
+     */
+    TransformUnit createUnit() {
+        return new TransformUnit(createUnitClassPool(), Collections.singletonList(this));
+    }
+
+    /**
+     * 创建额外从classPath查找类的处理上下文，用于AGP的instrumentation（classPath提供当前模块及其依赖中的类）。
+     * classPath在系统类和appendPermanentClassPath添加的类之后查找
+     */
+    TransformUnit createUnit(ClassPath classPath) {
+        return new TransformUnit(createContextClassPool(classPath), Collections.singletonList(this), classPath);
+    }
+
+    ClassPool createContextClassPool(ClassPath classPath) {
+        ClassPool classPool = new BoundedClassPool(getClassPool(), getMaxCachedClasses());
+        classPool.appendClassPath(classPath);
+        return classPool;
     }
 
-    private ClassInfo getClassInfo(String path) throws NotFoundException {
-        ClassPool classPool = getClassPool();
-        ClassPath classPath = classPool.appendClassPath(path);
-        return new ClassInfo(classPool, classPath);
+    // 为一个输入（jar或目录）创建独立的ClassPool，输入处理完后不再引用即可释放其中所有的CtClass。
+    // 所有输入中的类都通过mInputClassPath的索引查找
+    ClassPool createUnitClassPool() {
+        ClassPool classPool = new BoundedClassPool(getClassPool(), getMaxCachedClasses());
+        // 输入中的类优先于父ClassPool中的同名类，否则makeClass会因父ClassPool中已存在该类而失败
+        classPool.childFirstLookup = true;
+        classPool.appendClassPath(mInputClassPath);
+        return classPool;
     }
 
+    /**
+     * 添加在所有transform中都可见的classpath（如android.jar），同一路径只会添加一次
+     *
+     * @param pathname jar文件或不包含包名的class目录
+     * @return 包含该路径的ClassPath
+     */
     protected ClassPath appendPermanentClassPath(String pathname) throws NotFoundException {
-        if (mMapPermanentClassPath.containsKey(pathname)) {
-            return mMapPermanentClassPath.get(pathname);
+        if (mPermanentPaths.add(pathname)) {
+            try {
+                File file = new File(pathname);
+                if (!file.exists()) {
+                    throw new NotFoundException(pathname);
+                }
+                if (!addMappedJar(file)) {
+                    mPermanentClassPath.add(file);
+                }
+            } catch (IOException e) {
+                mPermanentPaths.remove(pathname);
+                throw new NotFoundException(pathname, e);
+            } catch (NotFoundException e) {
+                mPermanentPaths.remove(pathname);
+                throw e;
+            }
+        }
+        return mPermanentClassPath;
+    }
+
+    // 在worker中创建实例后调用一次：重新建立所有输入的索引
+    void prepareWorker(TransformWorker.Item item) {
+        prepareDetached(item.mPermanentPaths, item.mClassPathIndexDir);
+        for (String path : item.mClassPath) {
+            try {
+                mInputClassPath.add(new File(path));
+            } catch (IOException e) {
+                mMetrics.failure(path, e);
+            }
         }
-        ClassPool classPool = getClassPool();
-        ClassPath cp = classPool.appendClassPath(pathname);
-        mMapPermanentClassPath.put(pathname, cp);
-        return cp;
     }
 
-    // pathExcludePackage：不包含包名的文件夹，类似.../app/build/tmp/kotlin-classes/debug
-    private boolean modifyClass(CtClass ctClass, String pathExcludePackage)
-            throws CannotCompileException, IOException {
-        boolean hasModified = justModifyNotWriteBack(ctClass);
-        if (hasModified) {
-            if (ctClass.isFrozen()) {
-                ctClass.defrost();
+    // 在worker中处理一个jar或目录，结果直接写到输出位置；目录中的文件在该worker中依次处理
+    void transformInWorker(TransformWorker.Item item) {
+        TransformUnit unit = createUnit();
+        if (item.mJar) {
+            try {
+                streamTransformJar(unit, item.mInput, item.mOutput, item.mManifest, item.mChanged);
+            } catch (IOException e) {
+                mMetrics.failure(item.mInput.getAbsolutePath(), e);
+                restoreInputJar(item.mInput, item.mOutput, item.mManifest);
             }
-            ctClass.writeFile(pathExcludePackage);
-            ctClass.detach();
+            return;
+        }
+        for (InputFile f : getAllFiles(item.mInput)) {
+            transformSingleFile(f.mFile, f.mRelativePath, new File(item.mOutput, f.mRelativePath), unit);
         }
-        return hasModified;
     }
 
-    private static class ClassInfo {
+    // worker中的统计不写入报告，取出被忽略的异常输出到构建日志
+    List<String> drainWorkerFailures() {
+        return mMetrics.drainFailures();
+    }
+
+    // 在没有project的实例（worker、AGP的instrumentation）中修改类之前调用一次
+    void prepareDetached(Collection<String> permanentPaths, File classPathIndexDir) {
+        mClassPathIndexDir = classPathIndexDir;
+        initFilters();
+        appendPermanentPaths(permanentPaths);
+    }
+
+    // 依次appendPermanentClassPath，已添加的路径跳过
+    void appendPermanentPaths(Collection<String> paths) {
+        for (String path : paths) {
+            try {
+                appendPermanentClassPath(path);
+            } catch (NotFoundException e) {
+                mMetrics.failure(path, e);
+            }
+        }
+    }
 
-        private ClassPool mClassPool;
-        private ClassPath mClassPath;
+    // appendPermanentClassPath添加的路径
+    Set<String> getPermanentPaths() {
+        return mPermanentPaths;
+    }
+
+    // worker中暂时没有任务时关闭打开的输入jar，避免构建结束后仍占用文件，索引保留
+    void pauseWorker() {
+        mInputClassPath.closeJars();
+    }
+
+    // 下一次构建的任务到来时释放本次构建的实例
+    void closeWorker() {
+        mInputClassPath.close();
+    }
 
-        private ClassInfo(ClassPool classPool, ClassPath classPath) {
-            mClassPool = classPool;
-            mClassPath = classPath;
+    // 以预先建立的索引加入jar，返回false表示不使用索引或索引不可用
+    private boolean addMappedJar(File file) {
+        File indexDir = ((mProject == null) ? mClassPathIndexDir : getClassPathIndexDir());
+        if ((indexDir == null) || !file.isFile()) {
+            return false;
+        }
+        try {
+            mPermanentClassPath.addMapped(MappedJarIndex.open(file, indexDir));
+            return true;
+        } catch (IOException e) {
+            mMetrics.failure(file.getAbsolutePath(), e);
+            return false;
         }
+    }
 
+    private static boolean isValidClassPath(String path) {
+        return path.endsWith(".class") && !path.endsWith("R.class")
+                && !path.endsWith("BuildConfig.class") && !path.contains("R$");
     }
 
     private static class InjectJarFile {
@@ -557,6 +1939,42 @@ public abstract class EasyTransform extends Transform {
 
     }
 
+    /**
+     * 把transform注册到android插件中。{@link #isInstrumentationEnabled()}开启且AGP支持AsmClassVisitorFactory时，
+     * 改为注册到AGP的instrumentation中（{@link CompositeTransform}中的各transform分别注册，由AGP依次执行），
+     * 否则等同于android.registerTransform(transform)
+     */
+    public static void register(EasyTransform transform) {
+        if (transform.isInstrumentationEnabled() && isInstrumentationSupported()) {
+            try {
+                Class<?> registrar = Class.forName(INSTRUMENTATION_REGISTRAR, true, EasyTransform.class.getClassLoader());
+                Method method = registrar.getDeclaredMethod("register", EasyTransform.class);
+                method.setAccessible(true);
+                method.invoke(null, transform);
+                return;
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getCause();
+                throw ((cause instanceof RuntimeException) ? (RuntimeException) cause : new IllegalStateException(cause));
+            } catch (ReflectiveOperationException e) {
+                // 打包时未包含适配代码，退回到transform
+            }
+        }
+        BaseExtension extension = getExtension(transform.mProject);
+        if (extension == null) {
+            throw new IllegalStateException(transform.getName() + " 只能注册到android application或library工程中");
+        }
+        extension.registerTransform(transform);
+    }
+
+    private static boolean isInstrumentationSupported() {
+        try {
+            Class.forName(ASM_CLASS_VISITOR_FACTORY, false, EasyTransform.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
     public static BaseExtension getExtension(Project project) {
         if (project == null) {
             return null;
@@ -0,0 +1,262 @@
+package com.github.hlls.transform;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javassist.ClassPath;
+
+/**
+ * 预先建立“类名 -> 所在jar或目录”的索引，查找类时直接定位，无需逐个遍历classpath，也无需加锁。
+ * 同一类名出现在多个位置时，以先加入的为准；以{@link MappedJarIndex}加入的jar排在其他jar和目录之后
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class IndexedClassPath implements ClassPath, Closeable {
+
+    private Map<String, Source> mSources = new ConcurrentHashMap<>();
+    private List<JarRoot> mJarRoots = new CopyOnWriteArrayList<>();
+    private List<MappedJarIndex> mMappedJars = new CopyOnWriteArrayList<>();
+    // 目录 -> 遍历时记录的其中所有文件
+    private Map<File, List<InputFile>> mDirectoryFiles = new ConcurrentHashMap<>();
+
+    /**
+     * 把jar或目录中的所有类加入索引
+     *
+     * @param file jar文件或不包含包名的class目录
+     * @return jar文件的大小或目录中所有文件的总大小（字节）
+     */
+    long add(File file) throws IOException {
+        if (file.isDirectory()) {
+            return addDirectory(file);
+        } else if (file.isFile()) {
+            addJar(file);
+            return file.length();
+        }
+        return 0;
+    }
+
+    /**
+     * @param dir 以{@link #add(File)}加入的目录
+     * @return 加入时遍历得到的该目录中的所有文件（不只是class），不是以此加入的目录时返回null
+     */
+    List<InputFile> getFiles(File dir) {
+        return mDirectoryFiles.get(dir);
+    }
+
+    /**
+     * 加入预先建立了索引的jar，不再逐个读取其中的类
+     */
+    void addMapped(MappedJarIndex index) {
+        mMappedJars.add(index);
+    }
+
+    private void addJar(File jarFile) throws IOException {
+        JarRoot root = new JarRoot(jarFile);
+        try (ZipFile zf = new ZipFile(jarFile)) {
+            Enumeration<? extends ZipEntry> entries = zf.entries();
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                if (name.endsWith(".class")) {
+                    String className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                    mSources.putIfAbsent(className, new JarSource(root, name));
+                }
+            }
+        }
+        mJarRoots.add(root);
+    }
+
+    // 同时记录所有文件的相对路径和大小，处理该目录时不必再遍历
+    private long addDirectory(File dir) throws IOException {
+        Path root = dir.toPath();
+        String rootPath = root.toString();
+        long[] size = new long[1];
+        List<InputFile> files = new ArrayList<>();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                size[0] += attrs.size();
+                if (!attrs.isRegularFile()) {
+                    return FileVisitResult.CONTINUE;
+                }
+                InputFile f = new InputFile(file.toFile(), InputFile.getRelativePath(rootPath, file.toString()),
+                        attrs.size());
+                files.add(f);
+                String name = f.mRelativePath;
+                if (name.endsWith(".class")) {
+                    String className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                    mSources.putIfAbsent(className, new FileSource(f.mFile));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        mDirectoryFiles.put(dir, files);
+        return size[0];
+    }
+
+    @Override
+    public InputStream openClassfile(String classname) {
+        Source source = mSources.get(classname);
+        try {
+            if (source != null) {
+                return source.open();
+            }
+            for (MappedJarIndex index : mMappedJars) {
+                InputStream is = index.open(classname);
+                if (is != null) {
+                    return is;
+                }
+            }
+        } catch (IOException e) {
+
+        }
+        return null;
+    }
+
+    @Override
+    public URL find(String classname) {
+        Source source = mSources.get(classname);
+        try {
+            if (source != null) {
+                return source.toUrl();
+            }
+            for (MappedJarIndex index : mMappedJars) {
+                URL url = index.find(classname);
+                if (url != null) {
+                    return url;
+                }
+            }
+        } catch (MalformedURLException e) {
+
+        }
+        return null;
+    }
+
+    /**
+     * 关闭已打开的jar，索引保留，之后查找类时重新打开。调用时不能有其他线程正在读取
+     */
+    void closeJars() {
+        for (JarRoot root : mJarRoots) {
+            root.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        for (JarRoot root : mJarRoots) {
+            root.close();
+        }
+        mJarRoots.clear();
+        mSources.clear();
+        mDirectoryFiles.clear();
+        // 映射的索引由各transform共用，不在这里释放
+        mMappedJars.clear();
+    }
+
+    private interface Source {
+
+        InputStream open() throws IOException;
+
+        URL toUrl() throws MalformedURLException;
+
+    }
+
+    private static class FileSource implements Source {
+
+        private File mFile;
+
+        private FileSource(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new FileInputStream(mFile);
+        }
+
+        @Override
+        public URL toUrl() throws MalformedURLException {
+            return mFile.toURI().toURL();
+        }
+
+    }
+
+    private static class JarSource implements Source {
+
+        private JarRoot mRoot;
+        private String mEntryName;
+
+        private JarSource(JarRoot root, String entryName) {
+            mRoot = root;
+            mEntryName = entryName;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            ZipFile zf = mRoot.getZipFile();
+            ZipEntry entry = zf.getEntry(mEntryName);
+            return ((entry == null) ? null : zf.getInputStream(entry));
+        }
+
+        @Override
+        public URL toUrl() throws MalformedURLException {
+            return new URL("jar:" + mRoot.mJarFile.toURI() + "!/" + mEntryName);
+        }
+
+    }
+
+    // 同一jar中的类共用一个ZipFile，首次读取时才打开；ZipFile本身支持多线程同时读取
+    private static class JarRoot {
+
+        private File mJarFile;
+        private volatile ZipFile mZipFile;
+
+        private JarRoot(File jarFile) {
+            mJarFile = jarFile;
+        }
+
+        private ZipFile getZipFile() throws IOException {
+            ZipFile zf = mZipFile;
+            if (zf == null) {
+                synchronized (this) {
+                    zf = mZipFile;
+                    if (zf == null) {
+                        zf = new ZipFile(mJarFile);
+                        mZipFile = zf;
+                    }
+                }
+            }
+            return zf;
+        }
+
+        private synchronized void close() {
+            if (mZipFile != null) {
+                try {
+                    mZipFile.close();
+                } catch (IOException e) {
+
+                }
+                mZipFile = null;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,40 @@
+package com.github.hlls.transform;
+
+import java.io.File;
+import java.nio.file.Paths;
+
+/**
+ * 输入目录中的一个文件。遍历目录时顺便取得相对路径和大小（用于分批调度），之后不再逐个文件stat
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class InputFile {
+
+    File mFile;
+    // 以/分隔的相对路径
+    String mRelativePath;
+    long mSize;
+
+    InputFile(File file, String relativePath, long size) {
+        mFile = file;
+        mRelativePath = relativePath;
+        mSize = size;
+    }
+
+    // root：不包含包名的文件夹，类似.../app/build/tmp/kotlin-classes/debug
+    // path：root中的文件，如.../app/build/tmp/kotlin-classes/debug/com/lfa/mapleleafdemo/AnotherActivity.class
+    // 返回值：以/分隔的相对路径，如com/lfa/mapleleafdemo/AnotherActivity.class
+    static String getRelativePath(String root, String path) {
+        if (!path.startsWith(root)) {
+            path = Paths.get(root).relativize(Paths.get(path)).toString();
+        } else {
+            int start = root.length();
+            if ((start < path.length()) && (path.charAt(start) == File.separatorChar)) {
+                start++;
+            }
+            path = path.substring(start);
+        }
+        return ((File.separatorChar == '/') ? path : path.replace(File.separatorChar, '/'));
+    }
+
+}
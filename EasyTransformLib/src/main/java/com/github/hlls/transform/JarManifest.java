@@ -0,0 +1,81 @@
+package com.github.hlls.transform;
+
+import com.android.utils.FileUtils;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 记录上次transform时jar中各条目的CRC和大小，jar状态为CHANGED时据此只处理新增和变化的条目
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class JarManifest {
+
+    private Map<String, String> mEntries = new HashMap<>();
+
+    static JarManifest load(File file) {
+        if (!file.isFile()) {
+            return null;
+        }
+        JarManifest manifest = new JarManifest();
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // 格式：crc size name
+                int first = line.indexOf(' ');
+                int second = line.indexOf(' ', first + 1);
+                if ((first > 0) && (second > first)) {
+                    manifest.mEntries.put(line.substring(second + 1), line.substring(0, second));
+                }
+            }
+        } catch (IOException e) {
+            return null;
+        }
+        return manifest;
+    }
+
+    void save(File file) {
+        try {
+            FileUtils.mkdirs(file.getParentFile());
+            try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                for (Map.Entry<String, String> entry : mEntries.entrySet()) {
+                    writer.write(entry.getValue());
+                    writer.write(' ');
+                    writer.write(entry.getKey());
+                    writer.newLine();
+                }
+            }
+        } catch (IOException e) {
+            try {
+                FileUtils.deleteIfExists(file);
+            } catch (IOException e1) {
+
+            }
+        }
+    }
+
+    void put(ZipArchiveEntry entry) {
+        mEntries.put(entry.getName(), toValue(entry));
+    }
+
+    /**
+     * @return true：条目与上次transform时的内容相同
+     */
+    boolean isSame(ZipArchiveEntry entry) {
+        return toValue(entry).equals(mEntries.get(entry.getName()));
+    }
+
+    private static String toValue(ZipArchiveEntry entry) {
+        return Long.toHexString(entry.getCrc()) + " " + entry.getSize();
+    }
+
+}
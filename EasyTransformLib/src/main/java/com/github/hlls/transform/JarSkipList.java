@@ -0,0 +1,133 @@
+package com.github.hlls.transform;
+
+import com.android.utils.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * 记录上次transform时没有任何类被修改的jar（按jar内容区分），再次遇到时直接拷贝，不再逐个处理其中的类。
+ * transform标识（含版本号）变化时全部作废；有类处理失败的jar不记录，下次仍逐个处理
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class JarSkipList {
+
+    private File mFile;
+    private String mIdentity;
+    private Set<String> mKeys = ConcurrentHashMap.newKeySet();
+    private volatile boolean mChanged;
+
+    /**
+     * @param file     保存的位置
+     * @param identity transform标识，与保存时的不同则不加载
+     */
+    JarSkipList(File file, String identity) {
+        mFile = file;
+        mIdentity = identity;
+        load();
+    }
+
+    /**
+     * jar的内容标识：只读取zip的中央目录，按各条目的名称、CRC和大小计算，无需读取整个jar
+     */
+    static String getKey(File jarFile) throws IOException {
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (ZipFile zf = new ZipFile(jarFile)) {
+            Enumeration<? extends ZipEntry> entries = zf.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                md.update(entry.getName().getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+                md.update((Long.toHexString(entry.getCrc()) + " " + entry.getSize() + "\n")
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : md.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return true：上次transform时该jar没有类被修改
+     */
+    boolean contains(String key) {
+        return mKeys.contains(key);
+    }
+
+    /**
+     * 记录本次transform的结果
+     *
+     * @param modified true：有类被修改
+     */
+    void put(String key, boolean modified) {
+        boolean changed = (modified ? mKeys.remove(key) : mKeys.add(key));
+        if (changed) {
+            mChanged = true;
+        }
+    }
+
+    void save() {
+        if (!mChanged) {
+            return;
+        }
+        try {
+            FileUtils.mkdirs(mFile.getParentFile());
+            try (BufferedWriter writer = Files.newBufferedWriter(mFile.toPath(), StandardCharsets.UTF_8)) {
+                writer.write(mIdentity);
+                writer.newLine();
+                for (String key : mKeys) {
+                    writer.write(key);
+                    writer.newLine();
+                }
+            }
+            mChanged = false;
+        } catch (IOException e) {
+            try {
+                FileUtils.deleteIfExists(mFile);
+            } catch (IOException e1) {
+
+            }
+        }
+    }
+
+    private void load() {
+        if (!mFile.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(mFile.toPath(), StandardCharsets.UTF_8)) {
+            // 第一行是保存时的transform标识
+            if (!mIdentity.equals(reader.readLine())) {
+                mChanged = true;
+                return;
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    mKeys.add(line);
+                }
+            }
+        } catch (IOException e) {
+            mKeys.clear();
+        }
+    }
+
+}
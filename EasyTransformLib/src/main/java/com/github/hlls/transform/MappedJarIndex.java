@@ -0,0 +1,291 @@
+package com.github.hlls.transform;
+
+import com.android.utils.FileUtils;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * 预先建立的jar（如android.jar）中各类的位置索引，保存在文件中，之后以内存映射的方式打开jar和索引：
+ * 查找类时在索引中二分查找，直接从jar中该条目的数据位置读取，无需打开jar、读取其中央目录。
+ * 同一jar（按路径、大小、修改时间区分，即每个SDK版本）只建立一次索引，同一进程中只映射一次
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class MappedJarIndex {
+
+    // 保存格式的版本，格式变化时旧文件作废
+    private static final int FORMAT_VERSION = 1;
+    // 版本、jar大小、jar修改时间、类的数量
+    private static final int HEADER_SIZE = 4 + 8 + 8 + 4;
+    // 类名位置、类名长度、数据位置、压缩后大小、原始大小、压缩方式
+    private static final int RECORD_SIZE = 4 + 4 + 8 + 4 + 4 + 2;
+
+    // 索引文件路径 -> 已打开的索引
+    private static final Map<String, MappedJarIndex> sIndexes = new ConcurrentHashMap<>();
+
+    private File mJarFile;
+    private ByteBuffer mJar;
+    private ByteBuffer mIndex;
+    private int mCount;
+    private int mNamesOffset;
+
+    private MappedJarIndex(File jarFile, ByteBuffer jar, ByteBuffer index) {
+        mJarFile = jarFile;
+        mJar = jar;
+        mIndex = index;
+        mCount = index.getInt(HEADER_SIZE - 4);
+        mNamesOffset = HEADER_SIZE + mCount * RECORD_SIZE;
+    }
+
+    /**
+     * 打开jar的索引，不存在或已过期时先建立
+     *
+     * @param indexDir 索引文件的存放目录
+     */
+    static MappedJarIndex open(File jarFile, File indexDir) throws IOException {
+        String name = UUID.nameUUIDFromBytes(jarFile.getAbsolutePath().getBytes(StandardCharsets.UTF_8))
+                + "-" + jarFile.length() + "-" + jarFile.lastModified();
+        File indexFile = new File(indexDir, name);
+        String key = indexFile.getAbsolutePath();
+        MappedJarIndex index = sIndexes.get(key);
+        if (index != null) {
+            return index;
+        }
+        synchronized (sIndexes) {
+            index = sIndexes.get(key);
+            if (index == null) {
+                ByteBuffer buffer = map(indexFile);
+                if ((buffer == null) || !isValid(buffer, jarFile)) {
+                    build(jarFile, indexFile);
+                    buffer = map(indexFile);
+                    if ((buffer == null) || !isValid(buffer, jarFile)) {
+                        throw new IOException("invalid index " + indexFile);
+                    }
+                }
+                ByteBuffer jar = map(jarFile);
+                if (jar == null) {
+                    throw new IOException("cannot map " + jarFile);
+                }
+                index = new MappedJarIndex(jarFile, jar, buffer);
+                sIndexes.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * @param className 类名，如android.app.Activity
+     * @return 该类的class文件内容，不存在时返回null
+     */
+    InputStream open(String className) throws IOException {
+        int record = indexOf(className);
+        if (record < 0) {
+            return null;
+        }
+        int pos = HEADER_SIZE + record * RECORD_SIZE;
+        long dataOffset = mIndex.getLong(pos + 8);
+        int compressedSize = mIndex.getInt(pos + 16);
+        int size = mIndex.getInt(pos + 20);
+        int method = mIndex.getShort(pos + 24);
+        // 多出的一个字节是nowrap方式的Inflater所需的结尾
+        byte[] data = new byte[compressedSize + 1];
+        ByteBuffer jar = mJar.duplicate();
+        jar.position((int) dataOffset);
+        jar.get(data, 0, compressedSize);
+        if (method == ZipEntry.STORED) {
+            return new ByteArrayInputStream(data, 0, compressedSize);
+        }
+        byte[] bytes = new byte[size];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            int len = 0;
+            while (len < size) {
+                int n = inflater.inflate(bytes, len, size - len);
+                if ((n == 0) && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                len += n;
+            }
+            if (len != size) {
+                throw new IOException("truncated entry " + className + " in " + mJarFile);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        } finally {
+            inflater.end();
+        }
+        return new ByteArrayInputStream(bytes);
+    }
+
+    URL find(String className) throws MalformedURLException {
+        if (indexOf(className) < 0) {
+            return null;
+        }
+        return new URL("jar:" + mJarFile.toURI() + "!/" + className.replace('.', '/') + ".class");
+    }
+
+    // 二分查找，返回记录的序号，不存在时返回-1
+    private int indexOf(String className) {
+        byte[] name = className.getBytes(StandardCharsets.UTF_8);
+        int low = 0;
+        int high = mCount - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int pos = HEADER_SIZE + mid * RECORD_SIZE;
+            int cmp = compare(mNamesOffset + mIndex.getInt(pos), mIndex.getInt(pos + 4), name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // 按无符号字节比较索引中offset处长度为length的类名与name
+    private int compare(int offset, int length, byte[] name) {
+        int n = Math.min(length, name.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (mIndex.get(offset + i) & 0xff) - (name[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - name.length;
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static boolean isValid(ByteBuffer index, File jarFile) {
+        return (index.capacity() >= HEADER_SIZE) && (index.getInt(0) == FORMAT_VERSION)
+                && (index.getLong(4) == jarFile.length()) && (index.getLong(12) == jarFile.lastModified())
+                && (index.capacity() >= HEADER_SIZE + (long) index.getInt(HEADER_SIZE - 4) * RECORD_SIZE);
+    }
+
+    // 文件不存在或超过2G时返回null
+    private static ByteBuffer map(File file) throws IOException {
+        if (!file.isFile() || (file.length() > Integer.MAX_VALUE)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    // 先写到临时文件再替换，多个进程同时建立时不会读到不完整的索引
+    private static void build(File jarFile, File indexFile) throws IOException {
+        List<Record> records = new ArrayList<>();
+        long length = jarFile.length();
+        long lastModified = jarFile.lastModified();
+        try (ZipFile zf = new ZipFile(jarFile)) {
+            Enumeration<ZipArchiveEntry> entries = zf.getEntries();
+            while (entries.hasMoreElements()) {
+                ZipArchiveEntry entry = entries.nextElement();
+                String name = entry.getName();
+                int method = entry.getMethod();
+                if (entry.isDirectory() || !name.endsWith(".class")
+                        || ((method != ZipEntry.STORED) && (method != ZipEntry.DEFLATED))
+                        || (entry.getCompressedSize() > Integer.MAX_VALUE) || (entry.getSize() > Integer.MAX_VALUE)) {
+                    continue;
+                }
+                String className = name.substring(0, name.length() - ".class".length()).replace('/', '.');
+                records.add(new Record(className.getBytes(StandardCharsets.UTF_8), entry.getDataOffset(),
+                        (int) entry.getCompressedSize(), (int) entry.getSize(), method));
+            }
+        }
+        // 排序是稳定的，同名的类以jar中先出现的为准
+        records.sort((r1, r2) -> compare(r1.mName, r2.mName));
+        List<Record> unique = new ArrayList<>(records.size());
+        for (Record r : records) {
+            if (unique.isEmpty() || (compare(unique.get(unique.size() - 1).mName, r.mName) != 0)) {
+                unique.add(r);
+            }
+        }
+
+        FileUtils.mkdirs(indexFile.getParentFile());
+        File tmpFile = new File(indexFile.getParentFile(), UUID.randomUUID().toString() + ".tmp");
+        try {
+            try (OutputStream os = Files.newOutputStream(tmpFile.toPath());
+                 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os))) {
+                dos.writeInt(FORMAT_VERSION);
+                dos.writeLong(length);
+                dos.writeLong(lastModified);
+                dos.writeInt(unique.size());
+                int nameOffset = 0;
+                for (Record r : unique) {
+                    dos.writeInt(nameOffset);
+                    dos.writeInt(r.mName.length);
+                    dos.writeLong(r.mDataOffset);
+                    dos.writeInt(r.mCompressedSize);
+                    dos.writeInt(r.mSize);
+                    dos.writeShort(r.mMethod);
+                    nameOffset += r.mName.length;
+                }
+                for (Record r : unique) {
+                    dos.write(r.mName);
+                }
+            }
+            Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            FileUtils.deleteIfExists(tmpFile);
+        }
+    }
+
+    private static class Record {
+
+        private byte[] mName;
+        private long mDataOffset;
+        private int mCompressedSize;
+        private int mSize;
+        private int mMethod;
+
+        private Record(byte[] name, long dataOffset, int compressedSize, int size, int method) {
+            mName = name;
+            mDataOffset = dataOffset;
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mMethod = method;
+        }
+
+    }
+
+}
@@ -0,0 +1,66 @@
+package com.github.hlls.transform;
+
+import com.android.utils.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 生成transform输出文件的工具方法
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class OutputFiles {
+
+    private OutputFiles() {
+    }
+
+    /**
+     * 把未修改的文件放到输出位置：允许时建立硬链接，否则或不支持时（如跨文件系统）用FileChannel.transferTo拷贝
+     *
+     * @param from          输入文件
+     * @param to            输出文件，已存在时会先删除
+     * @param allowHardLink 是否允许建立硬链接
+     */
+    static void linkOrCopy(File from, File to, boolean allowHardLink) throws IOException {
+        prepare(to);
+        if (allowHardLink) {
+            try {
+                Files.createLink(to.toPath(), from.toPath());
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                // 退回到拷贝
+            }
+        }
+        transfer(from, to);
+    }
+
+    /**
+     * 把修改后的内容写到输出位置。先删除旧文件再写入，避免写穿与输入共用的硬链接
+     */
+    static void write(File to, byte[] bytes) throws IOException {
+        prepare(to);
+        Files.write(to.toPath(), bytes);
+    }
+
+    private static void prepare(File to) throws IOException {
+        FileUtils.deleteIfExists(to);
+        FileUtils.mkdirs(to.getParentFile());
+    }
+
+    private static void transfer(File from, File to) throws IOException {
+        try (FileChannel in = FileChannel.open(from.toPath(), StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(to.toPath(), StandardOpenOption.CREATE_NEW,
+                     StandardOpenOption.WRITE)) {
+            long size = in.size();
+            long position = 0;
+            while (position < size) {
+                position += in.transferTo(position, size - position, out);
+            }
+        }
+    }
+
+}
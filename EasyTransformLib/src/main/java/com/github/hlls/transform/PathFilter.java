@@ -0,0 +1,174 @@
+package com.github.hlls.transform;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 按路径筛选要处理的class，在读取文件内容之前判断。路径为jar中的条目名，或目录中以/分隔的相对路径，
+ * 如com/lfa/mapleleafdemo/AnotherActivity.class。排除优先于包含；没有任何包含条件时，除排除的以外全部包含。
+ * 包名以前缀树匹配，glob合并编译为一个正则表达式，判断时不产生额外的字符串
+ *
+ * <pre>
+ * new PathFilter()
+ *         .includePackage("com.lfa")
+ *         .excludePackage("com.lfa.generated")
+ *         .exclude("**&#47;R$*.class")
+ *         .exclude("**&#47;*_ViewBinding.class");
+ * </pre>
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public class PathFilter {
+
+    private PrefixTrie mIncludePackages = new PrefixTrie();
+    private PrefixTrie mExcludePackages = new PrefixTrie();
+    private List<String> mIncludeGlobs = new ArrayList<>();
+    private List<String> mExcludeGlobs = new ArrayList<>();
+    private Pattern mIncludePattern;
+    private Pattern mExcludePattern;
+
+    /**
+     * 包含该包及其子包中的类
+     *
+     * @param packageName 包名，如com.lfa
+     */
+    public PathFilter includePackage(String packageName) {
+        mIncludePackages.add(toPrefix(packageName));
+        return this;
+    }
+
+    /**
+     * 排除该包及其子包中的类
+     *
+     * @param packageName 包名，如com.lfa.generated
+     */
+    public PathFilter excludePackage(String packageName) {
+        mExcludePackages.add(toPrefix(packageName));
+        return this;
+    }
+
+    /**
+     * 包含与glob匹配的路径
+     *
+     * @param glob *匹配一级目录中的任意字符，**匹配任意多级目录，?匹配一个字符，如com/lfa/**&#47;*Activity.class
+     */
+    public PathFilter include(String glob) {
+        mIncludeGlobs.add(toRegex(glob));
+        mIncludePattern = compile(mIncludeGlobs);
+        return this;
+    }
+
+    /**
+     * 排除与glob匹配的路径
+     *
+     * @param glob 格式同{@link #include(String)}
+     */
+    public PathFilter exclude(String glob) {
+        mExcludeGlobs.add(toRegex(glob));
+        mExcludePattern = compile(mExcludeGlobs);
+        return this;
+    }
+
+    /**
+     * @param path 以/分隔的相对路径
+     * @return true表示要处理
+     */
+    boolean matches(String path) {
+        if (mExcludePackages.matchesPrefix(path)
+                || ((mExcludePattern != null) && mExcludePattern.matcher(path).matches())) {
+            return false;
+        }
+        if (mIncludePackages.isEmpty() && (mIncludePattern == null)) {
+            return true;
+        }
+        return mIncludePackages.matchesPrefix(path)
+                || ((mIncludePattern != null) && mIncludePattern.matcher(path).matches());
+    }
+
+    private static String toPrefix(String packageName) {
+        return (packageName.isEmpty() ? "" : packageName.replace('.', '/') + "/");
+    }
+
+    private static Pattern compile(List<String> regexes) {
+        return Pattern.compile("(?:" + String.join(")|(?:", regexes) + ")");
+    }
+
+    private static String toRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < glob.length()) {
+            char c = glob.charAt(i);
+            if (c == '*') {
+                if ((i + 1 < glob.length()) && (glob.charAt(i + 1) == '*')) {
+                    if ((i + 2 < glob.length()) && (glob.charAt(i + 2) == '/')) {
+                        // **/ 匹配零到多级目录
+                        sb.append("(?:.*/)?");
+                        i += 3;
+                    } else {
+                        sb.append(".*");
+                        i += 2;
+                    }
+                    continue;
+                }
+                sb.append("[^/]*");
+            } else if (c == '?') {
+                sb.append("[^/]");
+            } else if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+                sb.append('\\').append(c);
+            } else {
+                sb.append(c);
+            }
+            i++;
+        }
+        return sb.toString();
+    }
+
+    // 按字符逐级匹配的前缀树，路径中到达任一前缀的结尾即匹配
+    private static class PrefixTrie {
+
+        private Node mRoot = new Node();
+        private boolean mEmpty = true;
+
+        private void add(String prefix) {
+            Node node = mRoot;
+            for (int i = 0; i < prefix.length(); i++) {
+                node = node.mChildren.computeIfAbsent(prefix.charAt(i), k -> new Node());
+            }
+            node.mTerminal = true;
+            mEmpty = false;
+        }
+
+        private boolean isEmpty() {
+            return mEmpty;
+        }
+
+        private boolean matchesPrefix(String path) {
+            Node node = mRoot;
+            if (node.mTerminal) {
+                return true;
+            }
+            for (int i = 0; i < path.length(); i++) {
+                node = node.mChildren.get(path.charAt(i));
+                if (node == null) {
+                    return false;
+                }
+                if (node.mTerminal) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+    }
+
+    private static class Node {
+
+        private Map<Character, Node> mChildren = new HashMap<>();
+        private boolean mTerminal;
+
+    }
+
+}
@@ -0,0 +1,194 @@
+package com.github.hlls.transform;
+
+import com.android.utils.FileUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 跨构建的transform结果缓存，以“输入内容hash + transform标识”为key，按最近使用时间淘汰
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class TransformCache {
+
+    // 输出与输入内容相同时只记录一个标记文件，不重复保存输入
+    private static final String SUFFIX_SAME = ".same";
+
+    private File mCacheDir;
+    private long mMaxSize;
+    private String mIdentity;
+    private AtomicLong mCurrentSize;
+
+    TransformCache(File cacheDir, long maxSize, String identity) {
+        mCacheDir = cacheDir;
+        mMaxSize = maxSize;
+        mIdentity = identity;
+    }
+
+    String getKey(File input) throws IOException {
+        try (InputStream is = new FileInputStream(input)) {
+            MessageDigest md = newDigest();
+            byte[] buffer = new byte[64 * 1024];
+            int len;
+            while ((len = is.read(buffer)) != -1) {
+                md.update(buffer, 0, len);
+            }
+            return toHex(md.digest());
+        }
+    }
+
+    /**
+     * 命中缓存时把缓存的输出写到dest
+     *
+     * @param key   {@link #getKey(File)}的返回值
+     * @param input 输入文件，缓存记录为“未修改”时直接拷贝它
+     * @param dest  输出文件
+     * @return true：命中缓存
+     */
+    boolean restore(String key, File input, File dest) {
+        File same = getSameFile(key);
+        File data = getDataFile(key);
+        File from = same.isFile() ? input : (data.isFile() ? data : null);
+        if (from == null) {
+            return false;
+        }
+        try {
+            FileUtils.copyFile(from, dest);
+            touch(same.isFile() ? same : data);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 保存transform结果
+     *
+     * @param key      {@link #getKey(File)}的返回值
+     * @param output   transform的输出，modified为false时忽略
+     * @param modified 输出是否与输入不同
+     */
+    void store(String key, File output, boolean modified) {
+        File target = modified ? getDataFile(key) : getSameFile(key);
+        if (target.isFile()) {
+            return;
+        }
+        File tmp = new File(mCacheDir, UUID.randomUUID().toString() + ".tmp");
+        try {
+            FileUtils.mkdirs(target.getParentFile());
+            if (modified) {
+                FileUtils.copyFile(output, tmp);
+            } else {
+                Files.write(tmp.toPath(), new byte[0]);
+            }
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            if (getCurrentSize().addAndGet(target.length()) > mMaxSize) {
+                evict();
+            }
+        } catch (IOException e) {
+
+        } finally {
+            try {
+                FileUtils.deleteIfExists(tmp);
+            } catch (IOException e) {
+
+            }
+        }
+    }
+
+    // 按最后使用时间从旧到新删除，直到总大小降到上限的3/4以下
+    private synchronized void evict() {
+        List<File> files = listCacheFiles();
+        long size = 0;
+        for (File f : files) {
+            size += f.length();
+        }
+        if (size <= mMaxSize) {
+            mCurrentSize.set(size);
+            return;
+        }
+        files.sort(Comparator.comparingLong(File::lastModified));
+        long target = mMaxSize / 4 * 3;
+        for (File f : files) {
+            if (size <= target) {
+                break;
+            }
+            long length = f.length();
+            if (f.delete()) {
+                size -= length;
+            }
+        }
+        mCurrentSize.set(size);
+    }
+
+    private synchronized AtomicLong getCurrentSize() {
+        if (mCurrentSize == null) {
+            long size = 0;
+            for (File f : listCacheFiles()) {
+                size += f.length();
+            }
+            mCurrentSize = new AtomicLong(size);
+        }
+        return mCurrentSize;
+    }
+
+    private List<File> listCacheFiles() {
+        List<File> list = new ArrayList<>();
+        File[] dirs = mCacheDir.listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                File[] files = dir.listFiles(File::isFile);
+                if (files != null) {
+                    for (File f : files) {
+                        list.add(f);
+                    }
+                }
+            }
+        }
+        return list;
+    }
+
+    private File getDataFile(String key) {
+        return new File(new File(mCacheDir, key.substring(0, 2)), key);
+    }
+
+    private File getSameFile(String key) {
+        return new File(new File(mCacheDir, key.substring(0, 2)), key + SUFFIX_SAME);
+    }
+
+    private static void touch(File file) {
+        file.setLastModified(System.currentTimeMillis());
+    }
+
+    private MessageDigest newDigest() {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(mIdentity.getBytes(StandardCharsets.UTF_8));
+            return md;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+}
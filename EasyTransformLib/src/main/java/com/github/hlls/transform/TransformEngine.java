@@ -0,0 +1,14 @@
+package com.github.hlls.transform;
+
+/**
+ * 修改class所用的字节码引擎
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public enum TransformEngine {
+    // 通过{@link EasyTransform#justModifyNotWriteBack(javassist.CtClass)}修改，可使用源码形式插入代码
+    JAVASSIST,
+    // 通过{@link EasyTransform#createClassVisitor(String, org.objectweb.asm.ClassVisitor)}修改，
+    // 只在字节数组上流式处理，不建立完整的类模型，适合方法进出插桩等简单修改
+    ASM
+}
@@ -0,0 +1,347 @@
+package com.github.hlls.transform;
+
+import com.android.utils.FileUtils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一次transform的耗时和计数统计：各阶段累计耗时、处理的类和字节数、各jar和目录的耗时、被忽略的异常，
+ * 结束后输出为json报告，开启trace时另外输出Chrome trace event格式的文件（chrome://tracing 或 Perfetto 打开）
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class TransformMetrics {
+
+    static final String PHASE_WALK = "walk";
+    static final String PHASE_UNPACK = "unpack";
+    static final String PHASE_PACK = "pack";
+    static final String PHASE_SCAN = "scan";
+    static final String PHASE_PARSE = "parse";
+    static final String PHASE_MODIFY = "modify";
+    // 生成修改后的字节码
+    static final String PHASE_WRITE = "write";
+    // 把修改后的class写到输出文件或jar
+    static final String PHASE_OUTPUT = "output";
+    // 未修改的文件或jar条目直接放到输出位置
+    static final String PHASE_COPY = "copy";
+    static final String PHASE_CACHE = "cache";
+    // 计算jar的内容标识，用于跳过上次未修改的jar
+    static final String PHASE_SKIP_LIST = "skipList";
+    // 建立类索引
+    static final String PHASE_INDEX = "index";
+    // 增量构建中找出依赖的类有变化的类
+    static final String PHASE_DEPENDENCIES = "dependencies";
+    static final String PHASE_QUEUE_WAIT = "queueWait";
+    // 输入（jar或目录）因超出内存预算而等待的时间
+    static final String PHASE_BUDGET_WAIT = "budgetWait";
+    // 等待gradle worker中的任务执行完毕的时间
+    static final String PHASE_WORKER_WAIT = "workerWait";
+
+    // 报告中最多保留的异常数
+    private static final int MAX_FAILURES = 50;
+
+    private long mStartNanos = System.nanoTime();
+    private Map<String, Phase> mPhases = new ConcurrentHashMap<>();
+    private LongAdder mClassesScanned = new LongAdder();
+    private LongAdder mClassesModified = new LongAdder();
+    private LongAdder mClassesFailed = new LongAdder();
+    private LongAdder mBytesRead = new LongAdder();
+    private LongAdder mBytesWritten = new LongAdder();
+    private Queue<Unit> mUnits = new ConcurrentLinkedQueue<>();
+    private Queue<String> mFailures = new ConcurrentLinkedQueue<>();
+    private AtomicInteger mFailureCount = new AtomicInteger();
+    // 为null表示不记录trace
+    private Queue<TraceEvent> mTraceEvents;
+
+    TransformMetrics(boolean trace) {
+        if (trace) {
+            mTraceEvents = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    long begin() {
+        return System.nanoTime();
+    }
+
+    /**
+     * 把从begin到现在的耗时计入phase
+     */
+    void end(String phase, long begin) {
+        add(phase, System.nanoTime() - begin);
+    }
+
+    void add(String phase, long nanos) {
+        Phase p = mPhases.computeIfAbsent(phase, k -> new Phase());
+        p.mNanos.add(nanos);
+        p.mCount.increment();
+    }
+
+    /**
+     * 记录一个jar或目录的处理耗时，同时作为一个trace事件
+     *
+     * @param name     jar或目录的名称
+     * @param size     字节数
+     * @param begin    开始时间
+     * @param modified 是否有类被修改
+     */
+    void unit(String name, long size, long begin, boolean modified) {
+        long end = System.nanoTime();
+        mUnits.add(new Unit(name, size, end - begin, modified));
+        trace(name, begin, end);
+    }
+
+    /**
+     * 开启trace时记录一个在当前线程中执行的事件
+     */
+    void trace(String name, long begin) {
+        trace(name, begin, System.nanoTime());
+    }
+
+    private void trace(String name, long begin, long end) {
+        if (mTraceEvents != null) {
+            Thread thread = Thread.currentThread();
+            mTraceEvents.add(new TraceEvent(name, thread.getId(), thread.getName(), begin, end - begin));
+        }
+    }
+
+    void classScanned(long bytes) {
+        mClassesScanned.increment();
+        mBytesRead.add(bytes);
+    }
+
+    void classModified() {
+        mClassesModified.increment();
+    }
+
+    void classFailed(String className, Throwable t) {
+        mClassesFailed.increment();
+        failure(className, t);
+    }
+
+    /**
+     * 记录被忽略的异常
+     *
+     * @param what 出错的类、jar或文件
+     */
+    void failure(String what, Throwable t) {
+        if (mFailureCount.getAndIncrement() < MAX_FAILURES) {
+            mFailures.add(what + ": " + t);
+        }
+    }
+
+    /**
+     * 取出目前记录的异常，之后仍可继续记录。用于不输出报告的场景（如worker中）
+     */
+    List<String> drainFailures() {
+        List<String> list = new ArrayList<>();
+        String failure;
+        while ((failure = mFailures.poll()) != null) {
+            list.add(failure);
+        }
+        mFailureCount.addAndGet(-list.size());
+        return list;
+    }
+
+    void bytesRead(long bytes) {
+        mBytesRead.add(bytes);
+    }
+
+    void bytesWritten(long bytes) {
+        mBytesWritten.add(bytes);
+    }
+
+    /**
+     * @param header 报告开头的附加信息，如transform名称、variant
+     */
+    void writeReport(File file, Map<String, Object> header) throws IOException {
+        Map<String, Object> report = new LinkedHashMap<>(header);
+        report.put("wallMs", toMillis(System.nanoTime() - mStartNanos));
+        report.put("classesScanned", mClassesScanned.sum());
+        report.put("classesModified", mClassesModified.sum());
+        report.put("classesFailed", mClassesFailed.sum());
+        report.put("bytesRead", mBytesRead.sum());
+        report.put("bytesWritten", mBytesWritten.sum());
+
+        // 各阶段的耗时是所有线程的累计值，并行时可能大于wallMs
+        Map<String, Object> phases = new TreeMap<>();
+        mPhases.forEach((name, p) -> {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("ms", toMillis(p.mNanos.sum()));
+            m.put("count", p.mCount.sum());
+            phases.put(name, m);
+        });
+        report.put("phases", phases);
+
+        // 最慢的在前
+        List<Unit> units = new ArrayList<>(mUnits);
+        units.sort(Comparator.comparingLong((Unit u) -> u.mNanos).reversed());
+        List<Object> unitList = new ArrayList<>(units.size());
+        for (Unit u : units) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("name", u.mName);
+            m.put("bytes", u.mSize);
+            m.put("ms", toMillis(u.mNanos));
+            m.put("modified", u.mModified);
+            unitList.add(m);
+        }
+        report.put("units", unitList);
+        report.put("failureCount", mFailureCount.get());
+        report.put("failures", new ArrayList<Object>(mFailures));
+
+        write(file, report);
+    }
+
+    /**
+     * 每个工作线程在trace中是单独的一行
+     */
+    void writeTrace(File file) throws IOException {
+        if (mTraceEvents == null) {
+            return;
+        }
+        List<Object> events = new ArrayList<>();
+        Map<Long, String> threads = new TreeMap<>();
+        for (TraceEvent e : mTraceEvents) {
+            threads.put(e.mTid, e.mThreadName);
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("name", e.mName);
+            m.put("ph", "X");
+            m.put("pid", 1);
+            m.put("tid", e.mTid);
+            m.put("ts", (e.mBegin - mStartNanos) / 1000);
+            m.put("dur", e.mNanos / 1000);
+            events.add(m);
+        }
+        threads.forEach((tid, name) -> {
+            Map<String, Object> args = new LinkedHashMap<>();
+            args.put("name", name);
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("name", "thread_name");
+            m.put("ph", "M");
+            m.put("pid", 1);
+            m.put("tid", tid);
+            m.put("args", args);
+            events.add(m);
+        });
+        Map<String, Object> trace = new LinkedHashMap<>();
+        trace.put("traceEvents", events);
+        write(file, trace);
+    }
+
+    private static void write(File file, Object value) throws IOException {
+        FileUtils.deleteIfExists(file);
+        FileUtils.mkdirs(file.getParentFile());
+        try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            StringBuilder sb = new StringBuilder();
+            appendJson(sb, value);
+            writer.write(sb.toString());
+        }
+    }
+
+    // 只支持Map、List、String、Number、Boolean
+    private static void appendJson(StringBuilder sb, Object value) {
+        if (value instanceof Map) {
+            sb.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendJson(sb, String.valueOf(entry.getKey()));
+                sb.append(':');
+                appendJson(sb, entry.getValue());
+            }
+            sb.append('}');
+        } else if (value instanceof List) {
+            sb.append('[');
+            boolean first = true;
+            for (Object o : (List<?>) value) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                appendJson(sb, o);
+            }
+            sb.append(']');
+        } else if ((value instanceof Number) || (value instanceof Boolean)) {
+            sb.append(value);
+        } else if (value == null) {
+            sb.append("null");
+        } else {
+            String s = value.toString();
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if ((c == '"') || (c == '\\')) {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000;
+    }
+
+    private static class Phase {
+
+        private LongAdder mNanos = new LongAdder();
+        private LongAdder mCount = new LongAdder();
+
+    }
+
+    private static class Unit {
+
+        private String mName;
+        private long mSize;
+        private long mNanos;
+        private boolean mModified;
+
+        private Unit(String name, long size, long nanos, boolean modified) {
+            mName = name;
+            mSize = size;
+            mNanos = nanos;
+            mModified = modified;
+        }
+
+    }
+
+    private static class TraceEvent {
+
+        private String mName;
+        private long mTid;
+        private String mThreadName;
+        private long mBegin;
+        private long mNanos;
+
+        private TraceEvent(String name, long tid, String threadName, long begin, long nanos) {
+            mName = name;
+            mTid = tid;
+            mThreadName = threadName;
+            mBegin = begin;
+            mNanos = nanos;
+        }
+
+    }
+
+}
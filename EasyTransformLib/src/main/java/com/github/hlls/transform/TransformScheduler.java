@@ -0,0 +1,274 @@
+package com.github.hlls.transform;
+
+import com.android.ide.common.internal.WaitableExecutor;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * 以依赖关系串联transform的各个阶段（如解压 -> 逐个处理class -> 打包），前置阶段全部完成后才提交后续阶段，
+ * 线程池中的任务不会阻塞等待其他任务。只有调用transform的线程在{@link #await()}中等待全部完成。
+ * <p>
+ * 同时执行的任务数不超过并行度，多出的任务排队，前面的任务结束后再提交到线程池。
+ * 各输入（jar或目录）按估算的内存占用通过{@link #executeUnit}提交，处理中的输入的估算总和不超过内存预算
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class TransformScheduler {
+
+    private WaitableExecutor mWaitableExecutor;
+    private Executor mExecutor;
+    private int mParallelism;
+    private long mMemoryBudget;
+    private int mBatchSize;
+    private long mBatchBytes;
+    private TransformMetrics mMetrics;
+    private Queue<CompletableFuture<?>> mFutures = new ConcurrentLinkedQueue<>();
+    // 超出并行度而排队的任务，以及正在执行的任务数
+    private Deque<Runnable> mPendingTasks = new ArrayDeque<>();
+    private int mRunningTasks;
+    // 超出内存预算而排队的输入，以及正在处理的输入的估算内存总和
+    private Deque<Unit> mPendingUnits = new ArrayDeque<>();
+    private long mInFlightBytes;
+
+    /**
+     * @param executor     为null时所有任务在当前线程中顺序执行
+     * @param parallelism  最多同时执行的任务数
+     * @param memoryBudget {@link #executeUnit}中同时处理的输入的估算内存总和上限（字节）
+     * @param batchSize    {@link #executeBatched}中每批最多包含的数量
+     * @param batchBytes   {@link #executeBatched}中每批最多包含的字节数，单个超出的仍单独成批
+     * @param metrics      记录任务在队列中的等待时间
+     */
+    TransformScheduler(WaitableExecutor executor, int parallelism, long memoryBudget,
+                       int batchSize, long batchBytes, TransformMetrics metrics) {
+        mWaitableExecutor = executor;
+        mParallelism = Math.max(1, parallelism);
+        mMemoryBudget = memoryBudget;
+        mBatchSize = Math.max(1, batchSize);
+        mBatchBytes = batchBytes;
+        mMetrics = metrics;
+        if (executor == null) {
+            mExecutor = Runnable::run;
+        } else {
+            mExecutor = runnable -> {
+                long submitted = metrics.begin();
+                Runnable task = () -> {
+                    metrics.end(TransformMetrics.PHASE_QUEUE_WAIT, submitted);
+                    try {
+                        runnable.run();
+                    } finally {
+                        onTaskFinished();
+                    }
+                };
+                synchronized (mPendingTasks) {
+                    if (mRunningTasks >= mParallelism) {
+                        mPendingTasks.add(task);
+                        return;
+                    }
+                    mRunningTasks++;
+                }
+                submit(task);
+            };
+        }
+    }
+
+    CompletableFuture<Void> execute(Runnable task) {
+        return track(CompletableFuture.runAsync(task, mExecutor));
+    }
+
+    /**
+     * 提交一个输入（jar或目录）的处理。正在处理的输入的估算内存总和加上cost超出预算时，按提交顺序排队，
+     * 前面的输入全部处理完毕后再开始。没有正在处理的输入时，超出预算的单个输入也会开始
+     *
+     * @param cost 估算的内存占用（字节）
+     * @param task 开始处理，返回该输入全部处理完毕的stage
+     * @return 该输入全部处理完毕
+     */
+    CompletableFuture<Void> executeUnit(long cost, Supplier<CompletableFuture<?>> task) {
+        if (mWaitableExecutor == null) {
+            return track(task.get().thenApply(v -> (Void) null));
+        }
+        Unit unit = new Unit(cost, task, mMetrics.begin());
+        track(unit.mDone);
+        synchronized (mPendingUnits) {
+            mPendingUnits.add(unit);
+        }
+        admitUnits();
+        return unit.mDone;
+    }
+
+    /**
+     * 把大量小任务（如逐个处理class）合并成批提交，减少任务数量和队列竞争。按大小从大到小排序后分批，大的先开始
+     *
+     * @param items  要处理的对象
+     * @param sizeOf 对象的大小（字节）
+     * @param task   处理单个对象
+     * @return 各批的任务
+     */
+    <T> List<CompletableFuture<Void>> executeBatched(List<T> items, ToLongFunction<T> sizeOf, Consumer<T> task) {
+        List<T> sorted = new ArrayList<>(items);
+        sorted.sort(Comparator.comparingLong(sizeOf).reversed());
+        List<CompletableFuture<Void>> stages = new ArrayList<>();
+        List<T> batch = new ArrayList<>();
+        long bytes = 0;
+        for (T item : sorted) {
+            long size = sizeOf.applyAsLong(item);
+            if (!batch.isEmpty() && ((batch.size() >= mBatchSize) || (bytes + size > mBatchBytes))) {
+                stages.add(executeBatch(batch, task));
+                batch = new ArrayList<>();
+                bytes = 0;
+            }
+            batch.add(item);
+            bytes += size;
+        }
+        if (!batch.isEmpty()) {
+            stages.add(executeBatch(batch, task));
+        }
+        return stages;
+    }
+
+    private <T> CompletableFuture<Void> executeBatch(List<T> batch, Consumer<T> task) {
+        return execute(() -> {
+            long begin = mMetrics.begin();
+            for (T item : batch) {
+                task.accept(item);
+            }
+            mMetrics.trace("batch of " + batch.size(), begin);
+        });
+    }
+
+    /**
+     * stages全部结束（无论成功与否）后执行task
+     */
+    <T> CompletableFuture<T> afterAll(Collection<? extends CompletableFuture<?>> stages, Supplier<T> task) {
+        CompletableFuture<?>[] array = stages.toArray(new CompletableFuture<?>[0]);
+        return track(CompletableFuture.allOf(array)
+                .handle((v, t) -> null)
+                .thenApplyAsync(v -> task.get(), mExecutor));
+    }
+
+    /**
+     * stage成功结束后以其结果执行task
+     */
+    <T> CompletableFuture<Void> then(CompletableFuture<T> stage, Consumer<? super T> task) {
+        return track(stage.thenAcceptAsync(task, mExecutor));
+    }
+
+    /**
+     * 等待所有已提交及执行过程中新提交的任务结束，只能在transform线程中调用
+     */
+    void await() {
+        Throwable error = null;
+        CompletableFuture<?> future;
+        while ((future = mFutures.poll()) != null) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                if (error == null) {
+                    error = ((e.getCause() == null) ? e : e.getCause());
+                }
+            }
+        }
+        if (mWaitableExecutor != null) {
+            try {
+                mWaitableExecutor.waitForTasksWithQuickFail(true);
+            } catch (InterruptedException e) {
+                // 构建被取消，保留中断状态，不能把未完成的输出当作成功
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        if (error instanceof RuntimeException) {
+            throw (RuntimeException) error;
+        } else if (error instanceof Error) {
+            throw (Error) error;
+        } else if (error != null) {
+            throw new RuntimeException(error);
+        }
+    }
+
+    private <T> CompletableFuture<T> track(CompletableFuture<T> future) {
+        mFutures.add(future);
+        return future;
+    }
+
+    private void submit(Runnable task) {
+        mWaitableExecutor.execute(() -> {
+            task.run();
+            return null;
+        });
+    }
+
+    // 有排队的任务时直接在线程池中接着执行，否则空出一个位置
+    private void onTaskFinished() {
+        Runnable next;
+        synchronized (mPendingTasks) {
+            next = mPendingTasks.poll();
+            if (next == null) {
+                mRunningTasks--;
+                return;
+            }
+        }
+        submit(next);
+    }
+
+    // 按提交顺序开始预算允许的输入，排在前面的输入未开始时，后面较小的输入也不会越过它
+    private void admitUnits() {
+        List<Unit> admitted = new ArrayList<>();
+        synchronized (mPendingUnits) {
+            Unit unit;
+            while ((unit = mPendingUnits.peek()) != null) {
+                if ((mInFlightBytes > 0) && (mInFlightBytes + unit.mCost > mMemoryBudget)) {
+                    break;
+                }
+                mPendingUnits.poll();
+                mInFlightBytes += unit.mCost;
+                admitted.add(unit);
+            }
+        }
+        for (Unit unit : admitted) {
+            mMetrics.end(TransformMetrics.PHASE_BUDGET_WAIT, unit.mSubmitted);
+            CompletableFuture.supplyAsync(unit.mTask, mExecutor)
+                    .thenCompose(stage -> stage)
+                    .whenComplete((v, t) -> {
+                        synchronized (mPendingUnits) {
+                            mInFlightBytes -= unit.mCost;
+                        }
+                        if (t == null) {
+                            unit.mDone.complete(null);
+                        } else {
+                            unit.mDone.completeExceptionally(t);
+                        }
+                        admitUnits();
+                    });
+        }
+    }
+
+    private static class Unit {
+
+        private long mCost;
+        private Supplier<CompletableFuture<?>> mTask;
+        private long mSubmitted;
+        private CompletableFuture<Void> mDone = new CompletableFuture<>();
+
+        private Unit(long cost, Supplier<CompletableFuture<?>> task, long submitted) {
+            mCost = cost;
+            mTask = task;
+            mSubmitted = submitted;
+        }
+
+    }
+
+}
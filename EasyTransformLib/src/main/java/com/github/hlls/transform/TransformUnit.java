@@ -0,0 +1,114 @@
+package com.github.hlls.transform;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javassist.ClassPath;
+import javassist.ClassPool;
+
+/**
+ * 一个输入（jar或目录）的处理上下文：该输入专用的ClassPool，以及要对其中的类生效的transform（按顺序）
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class TransformUnit {
+
+    private ClassPool mClassPool;
+    private List<EasyTransform> mTransforms;
+    // 在输入和appendPermanentClassPath添加的路径之外查找类，为null表示没有
+    private ClassPath mClassPath;
+    // 第一个处理失败的类的异常
+    private volatile Throwable mFailure;
+    // 由fork()创建时为原来的处理上下文，失败同时记录在其中
+    private TransformUnit mParent;
+
+    TransformUnit(ClassPool classPool, List<EasyTransform> transforms) {
+        this(classPool, transforms, null);
+    }
+
+    TransformUnit(ClassPool classPool, List<EasyTransform> transforms, ClassPath classPath) {
+        mClassPool = classPool;
+        mTransforms = transforms;
+        mClassPath = classPath;
+    }
+
+    ClassPool getClassPool() {
+        return mClassPool;
+    }
+
+    ClassPath getClassPath() {
+        return mClassPath;
+    }
+
+    /**
+     * @return 共用ClassPool和transform、单独记录失败的处理上下文，用于判断其中某个类是否处理失败
+     */
+    TransformUnit fork() {
+        TransformUnit unit = new TransformUnit(mClassPool, mTransforms, mClassPath);
+        unit.mParent = this;
+        return unit;
+    }
+
+    void classFailed(Throwable t) {
+        if (mFailure == null) {
+            mFailure = t;
+        }
+        if (mParent != null) {
+            mParent.classFailed(t);
+        }
+    }
+
+    /**
+     * @return 第一个处理失败的类的异常，没有失败时为null
+     */
+    Throwable getFailure() {
+        return mFailure;
+    }
+
+    /**
+     * @return true表示该输入需要修改
+     */
+    boolean isNeedModify() {
+        return !mTransforms.isEmpty();
+    }
+
+    /**
+     * @param file         目录中的文件
+     * @param relativePath 该文件在目录中以/分隔的相对路径，如com/lfa/mapleleafdemo/AnotherActivity.class
+     * @return 要处理该文件的transform，为空表示不处理
+     */
+    List<EasyTransform> select(File file, String relativePath) {
+        if (mTransforms.size() == 1) {
+            EasyTransform t = mTransforms.get(0);
+            return (t.isValidInjectPath(file, relativePath) ? mTransforms : Collections.emptyList());
+        }
+        List<EasyTransform> list = new ArrayList<>(mTransforms.size());
+        for (EasyTransform t : mTransforms) {
+            if (t.isValidInjectPath(file, relativePath)) {
+                list.add(t);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @param entryName jar包中的条目名，如com/lfa/mapleleafdemo/AnotherActivity.class
+     * @return 要处理该条目的transform，为空表示不处理
+     */
+    List<EasyTransform> select(String entryName) {
+        if (mTransforms.size() == 1) {
+            EasyTransform t = mTransforms.get(0);
+            return (t.isValidInjectEntryPath(entryName) ? mTransforms : Collections.emptyList());
+        }
+        List<EasyTransform> list = new ArrayList<>(mTransforms.size());
+        for (EasyTransform t : mTransforms) {
+            if (t.isValidInjectEntryPath(entryName)) {
+                list.add(t);
+            }
+        }
+        return list;
+    }
+
+}
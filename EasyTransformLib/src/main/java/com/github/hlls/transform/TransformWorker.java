@@ -0,0 +1,183 @@
+package com.github.hlls.transform;
+
+import org.gradle.api.logging.Logger;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.provider.Property;
+import org.gradle.workers.WorkAction;
+import org.gradle.workers.WorkParameters;
+
+import java.io.File;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 在Gradle worker中处理一个jar或目录，由{@link WorkerDispatcher}提交，不应直接使用。
+ * 同一worker进程（或classloader）中，同一次构建的transform实例和输入索引只创建一次，不同构建的实例互不影响
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public abstract class TransformWorker implements WorkAction<TransformWorker.Parameters> {
+
+    // 最多保留的构建数。同一进程（或classloader）中可能同时执行多个构建（各变体、使用同一transform的多个模块），各自使用单独的实例
+    private static final int MAX_BUILDS = 8;
+    private static final Logger LOGGER = Logging.getLogger(TransformWorker.class);
+    // buildId -> 该次构建的transform实例，按最近使用的顺序
+    private static final LinkedHashMap<String, Build> sBuilds = new LinkedHashMap<>(16, 0.75f, true);
+
+    @Override
+    public void execute() {
+        Item item = getParameters().getItem().get();
+        EasyTransform transform = acquire(item);
+        try {
+            transform.transformInWorker(item);
+        } finally {
+            for (String failure : transform.drainWorkerFailures()) {
+                LOGGER.warn(item.mTransformClass + ": " + failure);
+            }
+            release(item.mBuildId);
+        }
+    }
+
+    private static synchronized EasyTransform acquire(Item item) {
+        Build build = sBuilds.get(item.mBuildId);
+        if (build == null) {
+            build = new Build();
+            sBuilds.put(item.mBuildId, build);
+            evictIdleBuilds();
+        }
+        EasyTransform transform = build.mTransforms.get(item.mTransformClass);
+        if (transform == null) {
+            transform = newInstance(item.mTransformClass);
+            transform.prepareWorker(item);
+            build.mTransforms.put(item.mTransformClass, transform);
+        }
+        build.mRunning++;
+        return transform;
+    }
+
+    // 该次构建暂时没有任务时关闭打开的jar，避免构建结束后仍占用输入文件
+    private static synchronized void release(String buildId) {
+        // 有任务在执行的构建不会被释放
+        Build build = sBuilds.get(buildId);
+        if (--build.mRunning == 0) {
+            for (EasyTransform t : build.mTransforms.values()) {
+                t.pauseWorker();
+            }
+        }
+    }
+
+    // 超过MAX_BUILDS时释放最久未使用、且没有任务在执行的构建的实例
+    private static void evictIdleBuilds() {
+        Iterator<Build> it = sBuilds.values().iterator();
+        int count = sBuilds.size();
+        while ((count > MAX_BUILDS) && it.hasNext()) {
+            Build build = it.next();
+            if (build.mRunning == 0) {
+                for (EasyTransform t : build.mTransforms.values()) {
+                    t.closeWorker();
+                }
+                it.remove();
+                count--;
+            }
+        }
+    }
+
+    // 通过无参构造函数创建transform实例，AGP的instrumentation中也以同样的方式创建
+    static EasyTransform newInstance(String className) {
+        try {
+            Class<?> clazz = Class.forName(className, true, TransformWorker.class.getClassLoader());
+            Constructor<?> constructor = clazz.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return (EasyTransform) constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(className + " 需要提供无参构造函数才能在worker或AGP的instrumentation中执行", e);
+        }
+    }
+
+    // 同一次构建中的transform实例（以类名为key）及正在执行的任务数
+    private static class Build {
+
+        private Map<String, EasyTransform> mTransforms = new HashMap<>();
+        private int mRunning;
+
+    }
+
+    /**
+     * worker的参数，由gradle序列化后传入worker
+     */
+    public interface Parameters extends WorkParameters {
+
+        Property<Item> getItem();
+
+    }
+
+    /**
+     * 一个jar或目录的处理参数
+     */
+    static class Item implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        String mTransformClass;
+        // 同一次transform提交的任务相同
+        String mBuildId;
+        // 所有输入（含引用的输入）的路径，按daemon中建立索引的顺序
+        ArrayList<String> mClassPath;
+        // appendPermanentClassPath添加的路径，如android.jar
+        ArrayList<String> mPermanentPaths;
+        // 为null表示不使用classpath索引
+        File mClassPathIndexDir;
+        // true：jar，false：目录
+        boolean mJar;
+        File mInput;
+        // 目标jar，或不包含包名的目标目录
+        File mOutput;
+        // 仅jar使用
+        File mManifest;
+        // 仅jar使用，true：增量构建中jar有变化，未变化的条目可从上次的输出中拷贝
+        boolean mChanged;
+
+        Item(String transformClass, String buildId, List<String> classPath, List<String> permanentPaths,
+             File classPathIndexDir) {
+            mTransformClass = transformClass;
+            mBuildId = buildId;
+            mClassPath = new ArrayList<>(classPath);
+            mPermanentPaths = new ArrayList<>(permanentPaths);
+            mClassPathIndexDir = classPathIndexDir;
+        }
+
+        // 各任务共用同一份classpath
+        private Item(Item template) {
+            mTransformClass = template.mTransformClass;
+            mBuildId = template.mBuildId;
+            mClassPath = template.mClassPath;
+            mPermanentPaths = template.mPermanentPaths;
+            mClassPathIndexDir = template.mClassPathIndexDir;
+        }
+
+        Item forJar(File jarFile, File destJarFile, File manifestFile, boolean changed) {
+            Item item = new Item(this);
+            item.mJar = true;
+            item.mInput = jarFile;
+            item.mOutput = destJarFile;
+            item.mManifest = manifestFile;
+            item.mChanged = changed;
+            return item;
+        }
+
+        Item forDirectory(File dir, File destDir) {
+            Item item = new Item(this);
+            item.mInput = dir;
+            item.mOutput = destDir;
+            return item;
+        }
+
+    }
+
+}
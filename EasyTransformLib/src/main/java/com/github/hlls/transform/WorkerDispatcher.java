@@ -0,0 +1,74 @@
+package com.github.hlls.transform;
+
+import org.gradle.workers.WorkQueue;
+import org.gradle.workers.WorkerExecutor;
+
+import java.io.File;
+import java.util.Collection;
+
+/**
+ * 把jar和目录的处理提交到Gradle worker中执行，结果由worker直接写到输出位置。
+ * 只能在执行transform的线程中提交
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+class WorkerDispatcher {
+
+    private WorkQueue mWorkQueue;
+    private TransformWorker.Item mTemplate;
+
+    /**
+     * @param classpath   worker中加载transform所需的classpath，{@link WorkerIsolationMode#NONE}时不使用
+     * @param maxHeapSize worker进程的最大堆内存，仅{@link WorkerIsolationMode#PROCESS}时有效，null表示使用gradle的默认值
+     * @param template    各任务共用的参数
+     */
+    WorkerDispatcher(WorkerExecutor workerExecutor, WorkerIsolationMode isolationMode, Collection<File> classpath,
+                     String maxHeapSize, TransformWorker.Item template) {
+        mWorkQueue = createWorkQueue(workerExecutor, isolationMode, classpath, maxHeapSize);
+        mTemplate = template;
+    }
+
+    /**
+     * @param changed true：增量构建中jar有变化，未变化的条目可从上次的输出中拷贝
+     */
+    void submitJar(File jarFile, File destJarFile, File manifestFile, boolean changed) {
+        submit(mTemplate.forJar(jarFile, destJarFile, manifestFile, changed));
+    }
+
+    /**
+     * @param dir     不包含包名的输入目录
+     * @param destDir 不包含包名的输出目录
+     */
+    void submitDirectory(File dir, File destDir) {
+        submit(mTemplate.forDirectory(dir, destDir));
+    }
+
+    /**
+     * 等待所有已提交的任务执行完毕，任一任务失败时抛出异常
+     */
+    void await() {
+        mWorkQueue.await();
+    }
+
+    private void submit(TransformWorker.Item item) {
+        mWorkQueue.submit(TransformWorker.class, parameters -> parameters.getItem().set(item));
+    }
+
+    private static WorkQueue createWorkQueue(WorkerExecutor workerExecutor, WorkerIsolationMode isolationMode,
+                                             Collection<File> classpath, String maxHeapSize) {
+        switch (isolationMode) {
+            case CLASSLOADER:
+                return workerExecutor.classLoaderIsolation(spec -> spec.getClasspath().from(classpath));
+            case PROCESS:
+                return workerExecutor.processIsolation(spec -> {
+                    spec.getClasspath().from(classpath);
+                    if (maxHeapSize != null) {
+                        spec.forkOptions(options -> options.setMaxHeapSize(maxHeapSize));
+                    }
+                });
+            default:
+                return workerExecutor.noIsolation();
+        }
+    }
+
+}
@@ -0,0 +1,15 @@
+package com.github.hlls.transform;
+
+/**
+ * 交给Gradle Worker API执行时的隔离方式，见{@link EasyTransform#getWorkerIsolationMode()}
+ *
+ * @author <a href="mailto:249418416@qq.com">mapleleaf</a>
+ */
+public enum WorkerIsolationMode {
+    // 在gradle daemon中执行，与daemon共用classloader
+    NONE,
+    // 在gradle daemon中执行，使用以{@link EasyTransform#getWorkerClasspath()}单独创建的classloader
+    CLASSLOADER,
+    // 在独立的worker进程中执行，最大堆内存见{@link EasyTransform#getWorkerMaxHeapSize()}
+    PROCESS
+}